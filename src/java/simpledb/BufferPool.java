@@ -1,9 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
@@ -15,6 +19,46 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The frames of the pool are split into shards by page id hash, each with
+ * its own lock, share of the frames and ReplacementPolicy, so that fetches
+ * of different pages do not contend on a single pool-wide lock. A shard that
+ * runs out of frames takes one over from another shard: a free frame if
+ * there is one, or else the frame of a clean page evicted there. A small
+ * pool has a single shard. The number of shards can be set with the system
+ * property simpledb.BufferPoolShards.
+ * <p>
+ * When every frame holds a dirty page, the pool steals one: it writes a
+ * dirty page of the requesting transaction to disk before the transaction
+ * commits, after forcing the page's UPDATE record, with its before image,
+ * to the log (see {@link #setSteal}). If the transaction aborts, the before
+ * images are written back from the log. A {@link PageCleaner} writes dirty
+ * pages ahead of time, in the background.
+ * <p>
+ * At commit, the pool either writes the pages of the transaction to disk
+ * (FORCE), or only logs them and keeps them cached (NO FORCE): the commit
+ * record forced after their UPDATE records makes the transaction durable,
+ * and its pages stay dirty until the cleaner, an eviction or a checkpoint
+ * writes them (see {@link #setForce}).
+ * <p>
+ * Optionally, the pool keeps the bytes of the heap pages it caches in a
+ * {@link FrameArena} outside of the Java heap; see {@link #setOffHeap}.
+ * <p>
+ * With row locking on (see {@link #setRowLocking}), inserting or deleting
+ * a heap tuple locks only the tuple, and its page and table in intention
+ * mode, so that transactions changing different tuples of a page do not
+ * wait for each other. An insert reserves an empty slot of the page for
+ * its tuple. The page itself changes when the transaction commits, and
+ * an abort simply drops the changes; until then the transaction's own
+ * scans see them. Scans lock pages IS and wait for the transactions
+ * changing the tuples they read, but keep no lock on those tuples, so
+ * that transactions that scanned a table go on to change different tuples
+ * of it. A transaction that deletes a tuple another transaction deleted,
+ * or inserted and committed after it began, aborts instead, so that no
+ * update is lost. A commit latches the pages it changes, in page id
+ * order, until its commit record follows their UPDATE records in the log,
+ * so that no other transaction's record of a page comes in between; it
+ * waits for the log to be forced after letting go of them.
  * 
  * @Threadsafe, all fields are final
  */
@@ -29,12 +73,77 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Fewest frames per shard, so that uneven hashing costs little. */
+    private static final int MIN_SHARD_PAGES = 64;
+
+    private static final int MAX_SHARDS = 64;
+
+    /** Commits under row locking between looks for insert times to forget. */
+    private static final int PRUNE_INTERVAL = 256;
+
+    private static volatile boolean offHeap =
+        Boolean.getBoolean("simpledb.OffHeap");
+
+    private static volatile boolean steal =
+        !"false".equals(System.getProperty("simpledb.Steal"));
+
+    private static volatile boolean force =
+        !"false".equals(System.getProperty("simpledb.Force"));
+
+    private static volatile boolean rowLocking =
+        Boolean.getBoolean("simpledb.RowLocking");
+
     public final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
 
     private int numPages;
-    private Object bplock;
     private ConcurrentHashMap<PageId, Page> bp;
-    private int bpcap;
+    private Shard[] shards;
+    private AtomicInteger numCached; // pages in all shards
+    private FrameArena arena;         // null unless off-heap
+
+    /**
+     * The frames of one shard of the pool. A page is in bp only while it is
+     * counted by the shard it hashes to. All fields are guarded by the shard.
+     */
+    private static class Shard {
+        int capacity; // frames owned by the shard
+        int count;    // pages cached in the shard
+        final ReplacementPolicy policy;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+            this.count = 0;
+            this.policy = new ReplacementPolicy(capacity);
+        }
+    }
+
+    /** The tuples a transaction inserts into and deletes from a page under row locking. */
+    private static class Deferred {
+        final Map<RecordId, Tuple> inserts = new LinkedHashMap<RecordId, Tuple>();
+        final Map<RecordId, Tuple> deletes = new LinkedHashMap<RecordId, Tuple>();
+
+        boolean isEmpty() {
+            return inserts.isEmpty() && deletes.isEmpty();
+        }
+    }
+
+    /**
+     * The latch of a page that commits apply deferred changes to, kept in
+     * pagelatches for as long as a transaction uses it.
+     */
+    private static class PageLatch {
+        final ReentrantLock lock = new ReentrantLock();
+        int users; // guarded by pagelatches
+    }
+
+    /** Orders pages by table, then page number, the order commits latch them in. */
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
+    };
 //    private class pageitem {
 //        public TransactionId txnid;
 //        public PageId pgid;
@@ -53,7 +162,23 @@ public class BufferPool {
 //    private LinkedList<Integer> invalididx;
 //    private ConcurrentLinkedQueue<Page> mempages;
     private ConcurrentHashMap<TransactionId, Set<PageId>> editedpagesoftxn;
-    private LockUtil lockutil;
+    private Set<TransactionId> stolentxns; // had pages written before completing
+    // pages holding, themselves or in their before image, changes that were
+    // committed without being written (NO FORCE), and the last committer
+    private ConcurrentHashMap<PageId, TransactionId> committedpages;
+    // the changes each transaction deferred under row locking, by page
+    private ConcurrentHashMap<TransactionId, Map<PageId, Deferred>> deferred;
+    private Map<PageId, BitSet> reservedslots; // of deferred inserts, guarded by itself
+    private Map<PageId, PageLatch> pagelatches; // guarded by itself
+    // the pages each committing transaction latched, in the order it did
+    private ConcurrentHashMap<TransactionId, List<PageId>> appliedpages;
+    private AtomicLong rowcommits; // commits that applied deferred changes
+    // the commits counted when each transaction first used row locking
+    private ConcurrentHashMap<TransactionId, Long> rowstarts;
+    // the commit that inserted each tuple, while a transaction began before it
+    private ConcurrentHashMap<RecordId, Long> insertedby;
+    private LockTable locks;
+    private Object[] loadlatches; // serialize reading in a page, by page id hash
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -71,12 +196,29 @@ public class BufferPool {
 //            valididx.push(i);
 //        }
 //        invalididx = new LinkedList<Integer>();
-        this.bplock = new Object();
         this.bp = new ConcurrentHashMap<PageId, Page>();
-        this.bpcap = 0;
+        this.numCached = new AtomicInteger(0);
+        int nshards = getShardCount(numPages);
+        this.shards = new Shard[nshards];
+        for (int i = 0; i < nshards; ++i)
+            shards[i] = new Shard(numPages / nshards + (i < numPages % nshards ? 1 : 0));
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+        PageCleaner.start();
 //        this.mempages = new ConcurrentLinkedQueue<Page>();
         this.editedpagesoftxn = new ConcurrentHashMap<TransactionId, Set<PageId>>();
-        this.lockutil = new LockUtil();
+        this.stolentxns = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+        this.committedpages = new ConcurrentHashMap<PageId, TransactionId>();
+        this.deferred = new ConcurrentHashMap<TransactionId, Map<PageId, Deferred>>();
+        this.reservedslots = new HashMap<PageId, BitSet>();
+        this.pagelatches = new HashMap<PageId, PageLatch>();
+        this.appliedpages = new ConcurrentHashMap<TransactionId, List<PageId>>();
+        this.rowcommits = new AtomicLong();
+        this.rowstarts = new ConcurrentHashMap<TransactionId, Long>();
+        this.insertedby = new ConcurrentHashMap<RecordId, Long>();
+        this.locks = new LockTable();
+        this.loadlatches = new Object[MAX_SHARDS];
+        for (int i = 0; i < loadlatches.length; ++i)
+            loadlatches[i] = new Object();
 //        txnpages = new Object[numPages];
     }
     
@@ -94,6 +236,84 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Sets whether BufferPools created from now on keep the bytes of cached
+     * heap pages in off-heap frames, one per page of the pool, instead of
+     * in byte arrays. Defaults to the system property simpledb.OffHeap.
+     */
+    public static void setOffHeap(boolean enabled) {
+        offHeap = enabled;
+    }
+
+    /** @return true if BufferPools created from now on run off-heap */
+    public static boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Sets whether a full pool may write out dirty pages of uncommitted
+     * transactions to make room (STEAL), or refuses to read more pages
+     * (NO STEAL). Defaults to the system property simpledb.Steal, which is
+     * true unless set to false.
+     */
+    public static void setSteal(boolean enabled) {
+        steal = enabled;
+    }
+
+    /** @return true if dirty pages may be written out before commit */
+    public static boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * Sets whether committing transactions write their pages to disk
+     * (FORCE), or only log them and leave them cached and dirty (NO FORCE).
+     * Defaults to the system property simpledb.Force, which is true unless
+     * set to false.
+     */
+    public static void setForce(boolean enabled) {
+        force = enabled;
+    }
+
+    /** @return true if pages are written to disk at commit */
+    public static boolean isForce() {
+        return force;
+    }
+
+    /**
+     * Sets whether inserting or deleting a heap tuple locks the tuple,
+     * deferring the change to its page until commit, or locks the page
+     * exclusively. B+ tree pages are always locked whole: a change to a
+     * leaf may split or merge it, which cannot wait for commit.
+     * Defaults to the system property simpledb.RowLocking.
+     */
+    public static void setRowLocking(boolean enabled) {
+        rowLocking = enabled;
+    }
+
+    /** @return true if heap tuples are inserted and deleted under row locks */
+    public static boolean isRowLocking() {
+        return rowLocking;
+    }
+
+    /**
+     * @return the number of shards of a pool of the specified size: the
+     *         value of simpledb.BufferPoolShards if set, otherwise one per
+     *         MIN_SHARD_PAGES frames, up to MAX_SHARDS
+     */
+    private static int getShardCount(int numPages) {
+        String shards = System.getProperty("simpledb.BufferPoolShards");
+        int n = shards == null ? Math.min(MAX_SHARDS, numPages / MIN_SHARD_PAGES)
+                               : Integer.parseInt(shards);
+        return Math.max(1, Math.min(n, numPages));
+    }
+
+    private Shard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= h >>> 16;
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
     private Set<PageId> geteditedpagesoftxn(TransactionId tid) {
         Set<PageId> pageset = new HashSet<PageId>();
         editedpagesoftxn.putIfAbsent(tid, pageset);
@@ -118,19 +338,91 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions on behalf
+     * of a sequential scan. Pages the scan reads in are kept in its ring
+     * rather than in the main part of the pool; see {@link ScanRing}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the ring of the scan, or null for an ordinary fetch
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        try {
+            locks.acquirePage(tid, pid, perm == Permissions.READ_ONLY
+                              ? LockTable.Mode.SHARED : LockTable.Mode.EXCLUSIVE);
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        }
+        return fetchPage(tid, pid, perm, ring);
+    }
+
+    /**
+     * Retrieves a heap page for a scan under row locking: the page is only
+     * locked IS, since the scan locks the tuples it reads instead; see
+     * {@link #readTuple}.
+     */
+    Page getPageOfTuples(TransactionId tid, PageId pid, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        beginRows(tid);
+        try {
+            locks.acquirePage(tid, pid, LockTable.Mode.INTENTION_SHARED);
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        }
+        return fetchPage(tid, pid, Permissions.READ_ONLY, ring);
+    }
+
+    /**
+     * Reads a heap tuple a scan found on a page under row locking. A
+     * transaction changing the tuple is waited for by locking the tuple S,
+     * but the lock is only held while the tuple is read.
+     *
+     * @return the tuple now in its slot, which is not the one found if the
+     *         slot changed meanwhile, or null if it is empty
+     */
+    Tuple readTuple(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        // e.g. a tuple it inserted, which is not on the page yet
+        if (locks.holdsLock(tid, rid))
+            return t;
+        try {
+            locks.acquireRecord(tid, rid, LockTable.Mode.SHARED);
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        }
+        locks.release(tid, rid);
+        HeapPage page = (HeapPage) fetchPage(tid, rid.getPageId(), Permissions.READ_ONLY, null);
+        return page.tupleAt(rid.getTupleNumber());
+    }
+
+    /**
+     * Retrieves a page like {@link #getPage} does, taking no lock: the
+     * caller holds one that covers it, or a lock on a tuple of it.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws DbException {
         try {
 
             Page pagefile = null;
-            Object pagelock = lockutil.AcquireLock(tid, pid, perm);
             if (perm == Permissions.READ_WRITE)
                 geteditedpagesoftxn(tid).add(pid);
 
             pagefile = bp.get(pid);
             if (pagefile != null) {
 //                System.out.println("here");
-                if (perm == Permissions.READ_WRITE) {
+                if (perm == Permissions.READ_WRITE)
                     pagefile.markDirty(true, tid);
-                    rwl.readLock().lock();
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    if (bp.containsKey(pid))
+                        shard.policy.access(pid, ring);
                 }
                 return pagefile;
             }
@@ -140,18 +432,17 @@ public class BufferPool {
                 DbFile databasefile = Database.getCatalog().getDatabaseFile(pid.getTableId());
                 pagefile = databasefile.readPage(pid);
             } else {
-                synchronized (pagelock) {
+                // readers of a page may hold no lock on it, only on its table
+                synchronized (loadlatches[(pid.hashCode() & 0x7fffffff) % loadlatches.length]) {
                     if ((pagefile = bp.get(pid)) == null) {
                         DbFile databasefile = Database.getCatalog().getDatabaseFile(pid.getTableId());
                         pagefile = databasefile.readPage(pid);
-                        synchronized (bplock) {
-                            if (bpcap < numPages) {
-                                bp.put(pid, pagefile);
-                                ++bpcap;
-                            } else {
-                                evictPage();
-                                bp.put(pid, pagefile);
-                            }
+                        cachePage(tid, pid, pagefile, ring);
+                    } else {
+                        Shard shard = shardOf(pid);
+                        synchronized (shard) {
+                            if (bp.containsKey(pid))
+                                shard.policy.access(pid, ring);
                         }
                     }
                 }
@@ -162,28 +453,14 @@ public class BufferPool {
                 pagefile = new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
             }
 
-            synchronized (bplock) {
-                if (bpcap < numPages) {
-                    pagefile.markDirty(true, tid);
-                    bp.put(pid, pagefile);
-                    ++bpcap;
-                } else {
-                    evictPage();
-                    pagefile.markDirty(true, tid);
-                    bp.put(pid, pagefile);
-                }
-            }
-            
-            rwl.readLock().lock();
+            pagefile.markDirty(true, tid);
+            cachePage(tid, pid, pagefile, ring);
 
             return pagefile;
         }
         catch (IOException e) {
             throw new DbException("IOException");
         }
-        catch (InterruptedException e) {
-            throw new DbException("InterruptedException");
-        }
 //        Integer idx = pageid2index.get(pid);
 //        if (idx == null) {
 //            DbFile databasefile = Database.getCatalog().getDatabaseFile(pid.getTableId());
@@ -212,6 +489,80 @@ public class BufferPool {
 //        return pagefile;
     }
 
+    /**
+     * Adds a page that was just read in to the pool, evicting a page if its
+     * shard is full. A scan whose ring is full recycles a frame of its ring
+     * instead. If every page of the pool is dirty, a page of the requesting
+     * transaction is written out, and evicted on the next try.
+     */
+    private void cachePage(TransactionId tid, PageId pid, Page page, ScanRing ring)
+        throws DbException, IOException {
+        Shard shard = shardOf(pid);
+        // the new page takes over the recycled frame, wherever it was
+        boolean freed = ring != null && ring.isFull() && recyclePage(ring);
+        while (true) {
+            synchronized (shard) {
+                if (freed) {
+                    ++shard.capacity;
+                    freed = false;
+                }
+                // a free frame elsewhere is better than evicting a page
+                if (bp.containsKey(pid) || shard.count < shard.capacity
+                        || (numCached.get() >= numPages && evictPage(shard, ring))) {
+                    Page old = bp.put(pid, page);
+                    if (old == null) {
+                        ++shard.count;
+                        numCached.incrementAndGet();
+                    } else if (old != page) {
+                        releaseFrame(old);
+                    }
+                    moveToFrame(page);
+                    shard.policy.access(pid, ring);
+                    return;
+                }
+            }
+            // not holding the shard's lock, so two full shards cannot
+            // deadlock taking frames from each other
+            if (takeFrame(shard)) {
+                freed = true;
+            } else if (!writeCommittedPage(shard) && !stealPage(tid, shard)) {
+                throw new DbException("no enough space");
+            }
+        }
+    }
+
+    /**
+     * Hands out the ring a sequential scan of a table should read its pages
+     * through, or null if the scan should use the pool like any other
+     * fetch. Only scans of tables that do not fit in the pool get a ring.
+     *
+     * @param tablePages the number of pages of the table being scanned
+     */
+    public ScanRing getScanRing(int tablePages) {
+        int size = ScanRing.getDefaultSize();
+        if (size <= 0 || tablePages <= numPages)
+            return null;
+        return new ScanRing(Math.min(size, Math.max(1, numPages / 4)));
+    }
+
+    /**
+     * Return true if the specified page is currently cached in the buffer
+     * pool. Takes no locks; the answer is only a hint, e.g. for read-ahead.
+     */
+    public boolean isCached(PageId pid) {
+        return bp.containsKey(pid);
+    }
+
+    /**
+     * @return true if the specified page is the one the pool caches for its
+     *         id. A page the cleaner wrote is clean, and may be evicted
+     *         between being fetched and being changed; while the caller
+     *         holds the page, it is not, so it can check first
+     */
+    boolean isCached(Page page) {
+        return bp.get(page.getId()) == page;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -224,7 +575,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        lockutil.releaselock(tid, pid);
+        locks.release(tid, pid);
     }
 
     /**
@@ -243,7 +594,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
 //        return getpagesoftxn(tid).contains(p);
-        return lockutil.holdsLock(tid, p);
+        return locks.holdsPage(tid, p);
     }
 
     /**
@@ -257,16 +608,49 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if (commit)
-            flushPages(tid);
-        synchronized (bplock) {
-            for (PageId pid : geteditedpagesoftxn(tid)) {
-                bp.remove(pid);
-                --bpcap;
+        if (commit) {
+            try {
+                applyDeferred(tid);
+            } finally {
+                finishDeferred(tid);
+            }
+        } else {
+            dropDeferred(tid);
+        }
+        completePages(tid, commit);
+        rowstarts.remove(tid);
+        locks.releaseAll(tid);
+    }
+
+    private void completePages(TransactionId tid, boolean commit) throws IOException {
+        Set<PageId> edited = geteditedpagesoftxn(tid);
+        if (commit) {
+            // pages logged by logPages stay cached; the log has them. Under
+            // FORCE, pages with deferred changes were logged at commit too
+            for (PageId pid : edited)
+                if (force || !tid.equals(committedpages.get(pid)))
+                    flushPage(pid);
+        }
+        // pages written out before the abort still hold its updates; a
+        // transaction aborted through Transaction was rolled back already
+        if (stolentxns.remove(tid) && !commit)
+            Database.getLogFile().rollback(tid);
+        for (PageId pid : edited) {
+            if (commit && (!force || tid.equals(committedpages.get(pid)))) {
+                // NO FORCE: the page stays cached, as of the commit
+                Page p = bp.get(pid);
+                if (p != null)
+                    p.setBeforeImage();
+                continue;
             }
+            if (!commit && restorePage(pid))
+                continue;
+            if (commit)
+                discardIfClean(pid);
+            else
+                discardPage(pid);
         }
         editedpagesoftxn.remove(tid);
-        lockutil.releaselocks(tid);
     }
 
     /**
@@ -313,12 +697,328 @@ public class BufferPool {
         databasefile.deleteTuple(tid, t);
     }
 
+    /**
+     * Inserts a heap tuple under row locking: reserves an empty slot of the
+     * page for it, locks the tuple exclusively, and its table and page in
+     * intention mode, and leaves the page as it is until the transaction
+     * commits. The tuple's RecordId is set to the reserved slot.
+     *
+     * @return the number of slots of the page still free for inserts, or -1
+     *         if there was none for this one
+     * @throws DbException if the tuple does not match the page's TupleDesc
+     */
+    int deferInsert(TransactionId tid, PageId pid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        beginRows(tid);
+        try {
+            locks.acquirePage(tid, pid, LockTable.Mode.INTENTION_EXCLUSIVE);
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        }
+        // slots only fill at commit, in the slots reserved here, so a look
+        // at the page without a lock on it is enough
+        HeapPage page = (HeapPage) fetchPage(tid, pid, Permissions.READ_ONLY, null);
+        if (!Database.getCatalog().getTupleDesc(pid.getTableId()).equals(t.getTupleDesc()))
+            throw new DbException("tupledesc mismatch!");
+        int slot = -1;
+        int room = 0;
+        synchronized (reservedslots) {
+            BitSet reserved = reservedslots.get(pid);
+            for (int i = 0; i < page.numSlots; ++i) {
+                if (page.isSlotUsed(i) || (reserved != null && reserved.get(i)))
+                    continue;
+                if (slot < 0)
+                    slot = i;
+                else
+                    ++room;
+            }
+            if (slot < 0)
+                return -1;
+            if (reserved == null) {
+                reserved = new BitSet();
+                reservedslots.put(pid, reserved);
+            }
+            reserved.set(slot);
+        }
+        RecordId rid = new RecordId(pid, slot);
+        boolean locked = false;
+        try {
+            // only waits for a commit that deleted the tuple the slot held
+            locks.acquireRecord(tid, rid, LockTable.Mode.EXCLUSIVE);
+            locked = true;
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        } finally {
+            if (!locked)
+                unreserve(rid);
+        }
+        t.setRecordId(rid);
+        Map<PageId, Deferred> pages = deferredOf(tid);
+        synchronized (pages) {
+            Deferred changes = pages.get(pid);
+            if (changes == null) {
+                changes = new Deferred();
+                pages.put(pid, changes);
+            }
+            changes.inserts.put(rid, t);
+        }
+        return room;
+    }
+
+    /**
+     * Deletes a heap tuple under row locking: locks the tuple exclusively,
+     * and its table and page in intention mode, and leaves the page as it
+     * is until the transaction commits. A tuple the transaction inserted
+     * itself is simply dropped, with its slot.
+     *
+     * @throws DbException if the transaction deleted the tuple already
+     * @throws TransactionAbortedException if the tuple was deleted, or
+     *         inserted by a transaction that committed after this one began
+     */
+    void deferDelete(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException {
+        beginRows(tid);
+        RecordId rid = t.getRecordId();
+        try {
+            locks.acquireRecord(tid, rid, LockTable.Mode.EXCLUSIVE);
+        } catch (InterruptedException e) {
+            throw new DbException("InterruptedException");
+        }
+        // no one else changes the tuple while it is locked, so a look at
+        // the page without a lock on it is enough
+        HeapPage page = (HeapPage) fetchPage(tid, rid.getPageId(), Permissions.READ_ONLY, null);
+        Map<PageId, Deferred> pages = deferredOf(tid);
+        synchronized (pages) {
+            Deferred changes = pages.get(rid.getPageId());
+            if (changes != null && changes.inserts.remove(rid) != null) {
+                unreserve(rid);
+                if (changes.isEmpty())
+                    pages.remove(rid.getPageId());
+                return;
+            }
+            if (changes != null && changes.deletes.containsKey(rid))
+                throw new DbException("error delete");
+            // scans do not keep their lock on the tuples they read, so the
+            // tuple may have been deleted since, or be one a transaction
+            // committed after this one began, which it may not overwrite
+            Long by = insertedby.get(rid);
+            if (!page.isSlotUsed(rid.getTupleNumber())
+                || (by != null && by > rowstarts.get(tid)))
+                throw new TransactionAbortedException();
+            if (changes == null) {
+                changes = new Deferred();
+                pages.put(rid.getPageId(), changes);
+            }
+            changes.deletes.put(rid, t);
+        }
+    }
+
+    /** Notes the commits a transaction under row locking began after. */
+    private void beginRows(TransactionId tid) {
+        if (!rowstarts.containsKey(tid))
+            rowstarts.putIfAbsent(tid, rowcommits.get());
+    }
+
+    /**
+     * Forgets when the tuples were inserted that every running transaction
+     * began after.
+     */
+    private void pruneInserted() {
+        long oldest = rowcommits.get();
+        for (long start : rowstarts.values())
+            oldest = Math.min(oldest, start);
+        for (Iterator<Long> it = insertedby.values().iterator(); it.hasNext(); )
+            if (it.next() <= oldest)
+                it.remove();
+    }
+
+    /** @return the changes of a transaction deferred under row locking */
+    private Map<PageId, Deferred> deferredOf(TransactionId tid) {
+        Map<PageId, Deferred> pages = deferred.get(tid);
+        if (pages == null) {
+            Map<PageId, Deferred> created = new HashMap<PageId, Deferred>();
+            pages = deferred.putIfAbsent(tid, created);
+            if (pages == null)
+                pages = created;
+        }
+        return pages;
+    }
+
+    /**
+     * @return the tuples of a page the transaction deleted under row
+     *         locking and has not committed yet, or null if there are none
+     */
+    Set<RecordId> getDeferredDeletes(TransactionId tid, PageId pid) {
+        Map<PageId, Deferred> pages = deferred.get(tid);
+        if (pages == null)
+            return null;
+        synchronized (pages) {
+            Deferred changes = pages.get(pid);
+            return changes == null || changes.deletes.isEmpty()
+                ? null : new HashSet<RecordId>(changes.deletes.keySet());
+        }
+    }
+
+    /**
+     * @return the tuples the transaction inserted into a page under row
+     *         locking and has not committed yet, or null if there are none
+     */
+    List<Tuple> getDeferredInserts(TransactionId tid, PageId pid) {
+        Map<PageId, Deferred> pages = deferred.get(tid);
+        if (pages == null)
+            return null;
+        synchronized (pages) {
+            Deferred changes = pages.get(pid);
+            return changes == null || changes.inserts.isEmpty()
+                ? null : new ArrayList<Tuple>(changes.inserts.values());
+        }
+    }
+
+    /** Frees the slot a deferred insert reserved. */
+    private void unreserve(RecordId rid) {
+        synchronized (reservedslots) {
+            BitSet reserved = reservedslots.get(rid.getPageId());
+            if (reserved == null)
+                return;
+            reserved.clear(rid.getTupleNumber());
+            if (reserved.isEmpty())
+                reservedslots.remove(rid.getPageId());
+        }
+    }
+
+    /** Drops the changes an aborting transaction deferred, and frees their slots. */
+    private void dropDeferred(TransactionId tid) {
+        Map<PageId, Deferred> pages = deferred.remove(tid);
+        if (pages == null)
+            return;
+        synchronized (pages) {
+            for (Map.Entry<PageId, Deferred> e : pages.entrySet()) {
+                if (e.getValue().inserts.isEmpty())
+                    continue;
+                for (RecordId rid : e.getValue().inserts.keySet())
+                    unreserve(rid);
+                PageId pid = e.getKey();
+                HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                file.markFree(pid.getPageNumber(), true);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes a committing transaction deferred under row
+     * locking to their pages, which it dirties like any other change, and
+     * logs the pages. Each page stays latched until {@link #finishDeferred},
+     * which must be called either way, so that the commit record follows
+     * the page's UPDATE record before another transaction's record does.
+     * The pages are latched in page id order, so that commits changing the
+     * same pages do not deadlock.
+     */
+    void applyDeferred(TransactionId tid) throws IOException {
+        Map<PageId, Deferred> pages = deferred.remove(tid);
+        if (pages == null)
+            return;
+        TreeMap<PageId, Deferred> ordered = new TreeMap<PageId, Deferred>(PAGE_ORDER);
+        synchronized (pages) {
+            ordered.putAll(pages);
+        }
+        List<PageId> latched = new ArrayList<PageId>();
+        appliedpages.put(tid, latched);
+        try {
+            for (Map.Entry<PageId, Deferred> e : ordered.entrySet()) {
+                latchPage(e.getKey());
+                latched.add(e.getKey());
+                applyTo(tid, e.getKey(), e.getValue());
+            }
+        } catch (DbException e) {
+            throw new IOException("applying deferred changes failed", e);
+        }
+        // counted once the pages show the changes, so that a transaction
+        // that began before may have read them, but not one that began after
+        long commit = rowcommits.incrementAndGet();
+        for (Deferred changes : ordered.values())
+            for (RecordId rid : changes.inserts.keySet())
+                insertedby.put(rid, commit);
+        if (commit % PRUNE_INTERVAL == 0)
+            pruneInserted();
+    }
+
+    /** Applies the deferred changes of a transaction to one page, and logs it. */
+    private void applyTo(TransactionId tid, PageId pid, Deferred changes)
+        throws DbException, IOException {
+        LogFile log = Database.getLogFile();
+        while (true) {
+            HeapPage page = (HeapPage) fetchPage(tid, pid, Permissions.READ_ONLY, null);
+            int room;
+            rwl.readLock().lock();
+            try {
+                synchronized (page) {
+                    // the page cleaner may have let the pool evict it meanwhile
+                    if (!isCached(page))
+                        continue;
+                    page.markDirty(true, tid);
+                    for (Tuple t : changes.deletes.values())
+                        page.deleteTuple(t);
+                    for (RecordId rid : changes.inserts.keySet()) {
+                        page.insertTuple(changes.inserts.get(rid), rid.getTupleNumber());
+                        unreserve(rid);
+                    }
+                    log.logWrite(tid, page.getBeforeImage(), page);
+                    committedpages.put(pid, tid);
+                    page.setBeforeImage();
+                    room = page.getNumEmptySlots();
+                }
+            } finally {
+                rwl.readLock().unlock();
+            }
+            geteditedpagesoftxn(tid).add(pid);
+            if (!changes.deletes.isEmpty() || room == 0) {
+                HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                file.markFree(pid.getPageNumber(), room > 0);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Lets go of the pages {@link #applyDeferred} latched, once the commit
+     * record of the transaction is in the log buffer.
+     */
+    void finishDeferred(TransactionId tid) {
+        List<PageId> latched = appliedpages.remove(tid);
+        if (latched == null)
+            return;
+        for (PageId pid : latched)
+            unlatchPage(pid);
+    }
+
+    private void latchPage(PageId pid) {
+        PageLatch latch;
+        synchronized (pagelatches) {
+            latch = pagelatches.get(pid);
+            if (latch == null) {
+                latch = new PageLatch();
+                pagelatches.put(pid, latch);
+            }
+            ++latch.users;
+        }
+        latch.lock.lock();
+    }
+
+    private void unlatchPage(PageId pid) {
+        synchronized (pagelatches) {
+            PageLatch latch = pagelatches.get(pid);
+            latch.lock.unlock();
+            if (--latch.users == 0)
+                pagelatches.remove(pid);
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
 //        for (int i = 0; i < numPages; ++i) {
@@ -336,9 +1036,15 @@ public class BufferPool {
                 flushPage(p.getId());
             }
         }
-        bp.clear();
-        bpcap = 0;
+        for (PageId pid : bp.keySet())
+            discardPage(pid);
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.policy.clear();
+            }
+        }
         editedpagesoftxn.clear();
+        committedpages.clear();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -349,7 +1055,7 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
 //        Integer idx = pageid2index.get(pid);
@@ -357,6 +1063,35 @@ public class BufferPool {
 //        invalididx.remove(idx);
 //        pagearray[idx] = null;
 //        pageid2index.put(pid, null);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page p = bp.remove(pid);
+            committedpages.remove(pid);
+            if (p != null) {
+                --shard.count;
+                numCached.decrementAndGet();
+                shard.policy.remove(pid);
+                releaseFrame(p);
+            }
+        }
+    }
+
+    /**
+     * Removes a page a transaction committed under FORCE from the pool,
+     * unless another commit has applied deferred changes to it since.
+     */
+    private void discardIfClean(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page p = bp.get(pid);
+            if (p == null || !removeIfClean(p))
+                return;
+            committedpages.remove(pid);
+            --shard.count;
+            numCached.decrementAndGet();
+            shard.policy.remove(pid);
+            releaseFrame(p);
+        }
     }
 
     /**
@@ -375,14 +1110,117 @@ public class BufferPool {
 //                pagefile.markDirty(false, null);
 //            }
 //        }
-        if (bp.get(pid) != null) {
-            if (bp.get(pid).isDirty() != null) {
-                DbFile pagefile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                pagefile.writePage(bp.get(pid));
+        writePage(pid, true);
+    }
+
+    /**
+     * Writes a dirty page to disk, unless it is a HeapPage that has not
+     * changed since it was last written. A page that only holds committed
+     * changes was logged at commit, so it is written without logging it
+     * again, and marked clean.
+     *
+     * @param pid the page to write
+     * @param clean true to mark the page clean; false to mark a HeapPage
+     *        clean only until its owner, which may still change it, does
+     */
+    private void writePage(PageId pid, boolean clean) throws IOException {
+        Page p = bp.get(pid);
+        if (p == null)
+            return;
+        // write-ahead: the update record, with the page's before image, is
+        // on disk before the page is. Holding the page keeps its owner from
+        // changing it between the write and marking it clean
+        rwl.readLock().lock();
+        try {
+            synchronized (p) {
+                TransactionId dirtier = p.isDirty();
+                if (dirtier == null || bp.get(pid) != p)
+                    return;
+                boolean committed = dirtier.equals(committedpages.get(pid));
+                HeapPage written = p instanceof HeapPage ? (HeapPage) p : null;
+                if (written == null || !written.isWritten()) {
+                    LogFile log = Database.getLogFile();
+                    if (!committed) {
+                        log.logWrite(dirtier, p.getBeforeImage(), p);
+                        // the next record of the page only logs what
+                        // changed since this one
+                        p.setBeforeImage();
+                        stolentxns.add(dirtier);
+                    }
+                    // a commit may still be waiting for its group
+                    log.force();
+                    DbFile pagefile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    pagefile.writePage(p);
+                    if (written != null)
+                        written.setWritten();
+                }
+                Database.getLogFile().pageWritten(pid);
+                // whatever was committed on the page is on disk now
+                committedpages.remove(pid);
+                if (clean || committed)
+                    p.markDirty(false, null);
+                else if (written != null)
+                    written.setCleaned();
             }
+        } finally {
+            rwl.readLock().unlock();
         }
     }
 
+    /**
+     * Returns the dirty pages the {@link PageCleaner} may write out ahead of
+     * time, in file offset order: pages that only hold committed changes,
+     * and, unless STEAL is off, heap pages that changed since they were
+     * last written, of transactions the log can roll back.
+     */
+    List<PageId> getCleanablePages() {
+        List<PageId> pages = new ArrayList<PageId>();
+        LogFile log = Database.getLogFile();
+        Map<TransactionId, Boolean> active = new HashMap<TransactionId, Boolean>();
+        for (Map.Entry<PageId, Page> e : bp.entrySet()) {
+            Page p = e.getValue();
+            TransactionId dirtier = p.isDirty();
+            if (dirtier == null)
+                continue;
+            if (dirtier.equals(committedpages.get(e.getKey()))) {
+                pages.add(e.getKey());
+                continue;
+            }
+            if (!steal || !(p instanceof HeapPage) || ((HeapPage) p).isWritten())
+                continue;
+            Boolean rollback = active.get(dirtier);
+            if (rollback == null) {
+                rollback = log.isActive(dirtier);
+                active.put(dirtier, rollback);
+            }
+            if (rollback)
+                pages.add(e.getKey());
+        }
+        Collections.sort(pages, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId())
+                    return a.getTableId() < b.getTableId() ? -1 : 1;
+                return Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+        return pages;
+    }
+
+    /**
+     * Writes out a page for the {@link PageCleaner}, and marks it clean, so
+     * that it can be evicted without a steal. The page of an active
+     * transaction is dirty again once the transaction changes it, and is
+     * not written again at commit unless it does.
+     */
+    void cleanPage(PageId pid) throws IOException {
+        writePage(pid, false);
+    }
+
+    /** @return the number of pages this buffer pool holds */
+    public int getNumPages() {
+        return numPages;
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
     public void flushPages(TransactionId tid) throws IOException {
@@ -393,11 +1231,84 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Logs the dirty pages of a committing transaction instead of writing
+     * them (NO FORCE): an UPDATE record for each page not logged since it
+     * last changed. The pages keep their changes as their before image and
+     * stay cached and dirty after the transaction completes. The caller
+     * forces the log with the commit record. Pages with changes deferred
+     * under row locking are logged when those are applied instead.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Map<PageId, Deferred> pending = deferred.get(tid);
+        for (PageId pid : geteditedpagesoftxn(tid)) {
+            Page p = bp.get(pid);
+            if (p == null)
+                continue;
+            if (pending != null) {
+                synchronized (pending) {
+                    if (pending.containsKey(pid))
+                        continue;
+                }
+            }
+            rwl.readLock().lock();
+            try {
+                synchronized (p) {
+                    if (!tid.equals(p.isDirty()) || bp.get(pid) != p)
+                        continue;
+                    if (p instanceof HeapPage && ((HeapPage) p).isWritten()) {
+                        // logged and written since it last changed
+                        committedpages.remove(pid);
+                        p.markDirty(false, null);
+                    } else {
+                        log.logWrite(tid, p.getBeforeImage(), p);
+                        committedpages.put(pid, tid);
+                    }
+                    p.setBeforeImage();
+                }
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Puts back the before image of a page of an aborting transaction if
+     * the page held changes of an earlier transaction that were committed
+     * but not written yet, so that they are not lost with the page.
+     *
+     * @return false if the page should simply be discarded
+     */
+    private boolean restorePage(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            TransactionId committer = committedpages.get(pid);
+            Page p = bp.get(pid);
+            if (committer == null || p == null)
+                return false;
+            Page before = p.getBeforeImage();
+            before.markDirty(true, committer);
+            bp.put(pid, before);
+            releaseFrame(p);
+            moveToFrame(before);
+            return true;
+        }
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages are evicted; dirty ones are written out first, by
+     * {@link #stealPage}. Among the clean pages of the shard, its
+     * ReplacementPolicy decides. The caller holds the shard's lock and
+     * reuses the freed frame.
+     *
+     * @param shard the shard to evict a page from
+     * @param ring the ring of the scan that needs a frame, or null
+     * @return false if every page of the shard is dirty
      */
-    private synchronized  void evictPage() throws DbException, IOException {
+    private boolean evictPage(Shard shard, ScanRing ring) throws IOException {
         // some code goes here
         // not necessary for lab1
 //        Integer idx = invalididx.getFirst();
@@ -409,15 +1320,180 @@ public class BufferPool {
 //        catch (IOException e) {
 //            e.printStackTrace();
 //        }
-        for (Page p : bp.values()) {
-            if (p != null && p.isDirty() != null) {
+        return evictFirstClean(shard, shard.policy.victims(ring));
+    }
+
+    /**
+     * Evicts the oldest clean page of a scan's ring. The ring's pages may be
+     * spread over several shards, so the frame freed is handed back to the
+     * caller: the shard it was in gives it up.
+     *
+     * @return false if every page of the ring is dirty
+     */
+    private boolean recyclePage(ScanRing ring) {
+        for (PageId pid : ring.pages()) {
+            Shard shard = shardOf(pid);
+            synchronized (shard) {
+                if (!shard.policy.inRing(pid, ring))
+                    continue;
+                Page p = bp.get(pid);
+                if (p == null || !removeIfClean(p))
+                    continue;
+                --shard.count;
+                numCached.decrementAndGet();
+                --shard.capacity;
+                shard.policy.evicted(pid);
+                releaseFrame(p);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a frame away from a shard other than the specified one, which is
+     * full: a free frame if any shard has one, or else the frame of a clean
+     * page evicted from the first shard that has one. The frame is handed
+     * back to the caller, like a recycled one.
+     *
+     * @return false if every frame of the pool holds a dirty page
+     */
+    private boolean takeFrame(Shard to) throws IOException {
+        for (int evict = 0; evict < 2; ++evict) {
+            for (Shard from : shards) {
+                if (from == to)
+                    continue;
+                synchronized (from) {
+                    if (from.count < from.capacity
+                            || (evict == 1 && evictPage(from, null))) {
+                        --from.capacity;
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes out a dirty page of the specified transaction, in the order
+     * the pools' ReplacementPolicies would evict it, starting with the
+     * specified shard, so that it can be evicted. Only HeapPages are
+     * stolen, and only from a transaction that is active in the log, which
+     * can roll them back. Pages of other transactions are left alone, since
+     * their owners may still be changing a page they fetched earlier.
+     *
+     * @return false if STEAL is off or the transaction has no such page
+     */
+    private boolean stealPage(TransactionId tid, Shard first) throws IOException {
+        if (!steal || tid == null || !Database.getLogFile().isActive(tid))
+            return false;
+        PageId victim = null;
+        for (int i = 0; victim == null && i <= shards.length; ++i) {
+            Shard shard = i == 0 ? first : shards[i - 1];
+            if (i > 0 && shard == first)
                 continue;
+            synchronized (shard) {
+                Iterator<PageId> it = shard.policy.victims(null);
+                while (victim == null && it.hasNext()) {
+                    PageId pid = it.next();
+                    Page p = bp.get(pid);
+                    if (p instanceof HeapPage && tid.equals(p.isDirty()))
+                        victim = pid;
+                }
             }
-//            flushPage(p.getId());
+        }
+        if (victim == null)
+            return false;
+        flushPage(victim);
+        return true;
+    }
+
+    /**
+     * Writes out a page that only holds committed changes, in the order the
+     * pools' ReplacementPolicies would evict it, starting with the specified
+     * shard, so that it can be evicted.
+     *
+     * @return false if there is no such page
+     */
+    private boolean writeCommittedPage(Shard first) throws IOException {
+        if (committedpages.isEmpty())
+            return false;
+        PageId victim = null;
+        for (int i = 0; victim == null && i <= shards.length; ++i) {
+            Shard shard = i == 0 ? first : shards[i - 1];
+            if (i > 0 && shard == first)
+                continue;
+            synchronized (shard) {
+                Iterator<PageId> it = shard.policy.victims(null);
+                while (victim == null && it.hasNext()) {
+                    PageId pid = it.next();
+                    Page p = bp.get(pid);
+                    if (p != null && p.isDirty() != null
+                            && p.isDirty().equals(committedpages.get(pid)))
+                        victim = pid;
+                }
+            }
+        }
+        if (victim == null)
+            return false;
+        flushPage(victim);
+        return true;
+    }
+
+    /** Evicts the first clean page of a shard among the candidates. */
+    private boolean evictFirstClean(Shard shard, Iterator<PageId> candidates) {
+        PageId victim = null;
+        while (candidates.hasNext()) {
+            PageId pid = candidates.next();
+            Page p = bp.get(pid);
+            if (p == null || !removeIfClean(p))
+                continue;
+            victim = pid;
+            releaseFrame(p);
+            break;
+        }
+        if (victim == null)
+            return false;
+        --shard.count;
+        numCached.decrementAndGet();
+        shard.policy.evicted(victim);
+        return true;
+    }
+
+    /**
+     * Removes a page from the pool if it is clean. The page is held while it
+     * is checked and removed, so that an owner changing it, which holds it
+     * too (see {@link #isCached(Page)}), either finds it gone or makes it
+     * dirty first. The caller holds the page's shard.
+     */
+    private boolean removeIfClean(Page p) {
+        synchronized (p) {
+            if (p.isDirty() != null)
+                return false;
             bp.remove(p.getId());
-            return;
+            return true;
         }
-        throw new DbException("no enough space");
+    }
+
+    /** Moves a page just added to the pool into an off-heap frame, if any. */
+    private void moveToFrame(Page page) {
+        if (arena == null || !(page instanceof HeapPage))
+            return;
+        ByteBuffer frame = arena.allocate();
+        // without a frame, e.g. while another shard still holds on to one,
+        // the page simply stays on the heap
+        if (frame != null && !((HeapPage) page).moveTo(frame))
+            arena.release(frame);
+    }
+
+    /** Gives back the frame of a page that left the pool, if it had one. */
+    private void releaseFrame(Page page) {
+        if (arena == null || !(page instanceof HeapPage))
+            return;
+        ByteBuffer frame = ((HeapPage) page).detach();
+        if (frame != null)
+            arena.release(frame);
     }
 
 }
@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FrameArena is a fixed set of page-sized frames allocated outside of the
+ * Java heap, in direct ByteBuffers. When the BufferPool runs off-heap (see
+ * {@link BufferPool#setOffHeap}), the bytes of every HeapPage it caches are
+ * moved into a frame, so the page itself is little more than a view over
+ * the frame, and the size of the pool no longer adds to the heap the
+ * garbage collector has to trace. A page leaving the pool gives its frame
+ * back.
+ * <p>
+ * The frames are carved out of a few large direct buffers of at most
+ * MAX_CHUNK bytes each, so allocating the arena costs a handful of system
+ * calls, not one per frame.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    private static final int MAX_CHUNK = 1 << 30;
+
+    private final int frameSize;
+    private final int numFrames;
+    private final ArrayDeque<ByteBuffer> free;
+
+    /**
+     * Allocates an arena.
+     *
+     * @param numFrames the number of frames
+     * @param frameSize the size of a frame in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        this.free = new ArrayDeque<ByteBuffer>(numFrames);
+        int perChunk = Math.max(1, MAX_CHUNK / frameSize);
+        for (int first = 0; first < numFrames; first += perChunk) {
+            int frames = Math.min(perChunk, numFrames - first);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(frames * frameSize);
+            for (int i = 0; i < frames; ++i) {
+                ByteBuffer frame = chunk.duplicate();
+                frame.position(i * frameSize);
+                frame.limit((i + 1) * frameSize);
+                free.add(frame.slice());
+            }
+        }
+    }
+
+    /** @return the size of a frame in bytes */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames of the arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames not handed out */
+    public synchronized int getNumFree() {
+        return free.size();
+    }
+
+    /**
+     * Hands out a free frame.
+     *
+     * @return a frame, or null if every frame is in use
+     */
+    public synchronized ByteBuffer allocate() {
+        return free.poll();
+    }
+
+    /** Gives back a frame handed out by {@link #allocate}. */
+    public synchronized void release(ByteBuffer frame) {
+        free.push(frame);
+    }
+}
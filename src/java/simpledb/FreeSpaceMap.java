@@ -0,0 +1,368 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so that an insert can go straight to a page with room instead of
+ * locking and inspecting every page from the start of the file.
+ * <p>
+ * The map is kept in memory as one bit per page and is updated as tuples are
+ * inserted and deleted. It is only a hint: an insert still checks the page it
+ * is sent to under its write lock, and corrects the map if the page turns out
+ * to be full, e.g. because the delete that set the bit was rolled back.
+ * <p>
+ * The map is also stored next to the heap file (see {@link #fileFor}). The
+ * stored bit of a page is updated whenever the page is written, so reopening
+ * a table does not have to read the header of every page. The stored map is
+ * only trusted if it was sealed ({@link #seal}), which a clean shutdown does
+ * once the heap file is on disk, and the first write after that unseals it
+ * again. After a crash, the map and the heap file may disagree about pages
+ * written since, so the map is rebuilt from the page headers, as it is when
+ * it does not describe exactly the pages of the heap file.
+ * <p>
+ * The stored map is an int holding the number of pages it describes, an
+ * int that is {@link #SEALED} if it is sealed, and then one bit per page,
+ * lowest page number in the lowest bit.
+ * <p>
+ * To keep concurrent inserts off each other's pages, a transaction claims
+ * the page with room it inserts into ({@link #claim}) and keeps inserting
+ * there until the page is full. Other transactions skip the page for as
+ * long as the claiming transaction is still inserting into it, which by
+ * default is forever; HeapFile overrides {@link #isInserting} to end a claim
+ * once the transaction has released its lock on the page. When the file has
+ * to grow, it grows by one page for every transaction currently holding a
+ * claim, up to {@link #getMaxExtent} pages, so each inserting transaction
+ * finds a page of its own. The maximum can be set with the system property
+ * simpledb.HeapExtent.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int COUNT_SIZE = 4;
+
+    private static final int HEADER_SIZE = COUNT_SIZE + 4;
+
+    /** The seal of a stored map that matches the heap file on disk. */
+    private static final int SEALED = 0x5ea1ed;
+
+    private static final int DEFAULT_MAX_EXTENT = 16;
+
+    private static volatile int maxExtent;
+    static {
+        String extent = System.getProperty("simpledb.HeapExtent");
+        maxExtent = extent == null ? DEFAULT_MAX_EXTENT : Integer.parseInt(extent);
+    }
+
+    private final PageChannel heap;
+    private final PageChannel channel;
+    private final int numSlots;
+    private final int headerSize;
+
+    private boolean loaded;
+    private BitSet free;     // pages with room, as far as inserts know
+    private BitSet stored;   // pages with room when they were last written
+    private int numPages;    // pages handed out, including unwritten ones
+    private int storedPages; // pages described by the stored map
+    private boolean sealed;  // the stored map is sealed on disk
+    private final Map<Integer, TransactionId> claims;
+
+    /**
+     * Creates the free space map of a heap file. Nothing is read until the
+     * map is first used.
+     *
+     * @param heapFile the file backing the heap file
+     * @param heap the channel the heap file reads its pages through
+     * @param td the TupleDesc of the heap file
+     */
+    public FreeSpaceMap(File heapFile, PageChannel heap, TupleDesc td) {
+        this.heap = heap;
+        this.channel = new PageChannel(fileFor(heapFile));
+        // same layout as HeapPage
+        this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.loaded = false;
+        this.claims = new HashMap<Integer, TransactionId>();
+    }
+
+    /** @return the maximum number of pages a heap file grows by at once */
+    public static int getMaxExtent() {
+        return maxExtent;
+    }
+
+    /** Sets the maximum number of pages a heap file grows by at once. */
+    public static void setMaxExtent(int pages) {
+        maxExtent = Math.max(1, pages);
+    }
+
+    /**
+     * @return the file the free space map of the specified heap file is
+     *         stored in
+     */
+    public static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Returns a page that had an empty slot when it was last looked at, or
+     * -1 if no page is known to have room.
+     */
+    public synchronized int findFree() {
+        load();
+        return free.nextSetBit(0);
+    }
+
+    /**
+     * Returns true if a transaction that claimed a page is still inserting
+     * into it, so that the page should be left alone by other transactions.
+     * Subclasses that know about locks override this; the default assumes
+     * a claim lasts forever.
+     */
+    protected boolean isInserting(TransactionId owner, int pageNo) {
+        return true;
+    }
+
+    /**
+     * Claims a page with room for the specified transaction: the page it
+     * already claimed, if that still has room, or else the first page with
+     * room that no other transaction is inserting into.
+     *
+     * @return the claimed page, or -1 if no unclaimed page is known to have
+     *         room
+     */
+    public synchronized int claim(TransactionId tid) {
+        load();
+        for (Map.Entry<Integer, TransactionId> e : claims.entrySet()) {
+            if (e.getValue().equals(tid) && free.get(e.getKey()))
+                return e.getKey();
+        }
+        for (int p = free.nextSetBit(0); p >= 0; p = free.nextSetBit(p + 1)) {
+            TransactionId owner = claims.get(p);
+            if (owner == null || !isInserting(owner, p)) {
+                claims.put(p, tid);
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /** Drops a transaction's claim on a page, e.g. once the page is full. */
+    public synchronized void unclaim(int pageNo, TransactionId tid) {
+        if (tid.equals(claims.get(pageNo)))
+            claims.remove(pageNo);
+    }
+
+    /**
+     * Hands out the page number just past the last page of the file, so
+     * that concurrent inserts extending the file get different pages even
+     * before any of them is written. The new page is recorded as free and
+     * claimed for the specified transaction.
+     *
+     * @return the number of the new page
+     */
+    public synchronized int allocate(TransactionId tid) {
+        load();
+        int pageNo = numPages++;
+        free.set(pageNo);
+        claims.put(pageNo, tid);
+        return pageNo;
+    }
+
+    /**
+     * @return the number of pages the file should grow by when it runs out
+     *         of room: one for each transaction still inserting into a page
+     *         it claimed, at least one and at most {@link #getMaxExtent}
+     */
+    public synchronized int extent() {
+        Set<TransactionId> inserters = new HashSet<TransactionId>();
+        Iterator<Map.Entry<Integer, TransactionId>> it = claims.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, TransactionId> e = it.next();
+            if (isInserting(e.getValue(), e.getKey()))
+                inserters.add(e.getValue());
+            else
+                it.remove();
+        }
+        return Math.max(1, Math.min(inserters.size(), maxExtent));
+    }
+
+    /**
+     * Records whether the specified page has an empty slot, after a tuple
+     * was inserted into or deleted from it or the page was read. Nothing is
+     * recorded before the map is loaded, since loading reads the state of
+     * every page anyway.
+     */
+    public synchronized void setFree(int pageNo, boolean hasRoom) {
+        if (!loaded)
+            return;
+        if (pageNo >= numPages) {
+            // pages in between were never written, so they are empty
+            free.set(numPages, pageNo);
+            numPages = pageNo + 1;
+        }
+        free.set(pageNo, hasRoom);
+    }
+
+    /**
+     * Records that the specified page was written to the heap file, and
+     * updates the stored map to match.
+     *
+     * @param pageNo the page written
+     * @param hasRoom true if the written page has an empty slot
+     */
+    public synchronized void pageWritten(int pageNo, boolean hasRoom) throws IOException {
+        load();
+        setFree(pageNo, hasRoom);
+        store(pageNo, pageNo + 1, hasRoom);
+    }
+
+    /**
+     * Unseals the stored map before a page of the heap file is written, so
+     * that a crash before the map catches up leaves it to be rebuilt.
+     */
+    public synchronized void unseal() throws IOException {
+        load();
+        if (!sealed)
+            return;
+        channel.write(new byte[4], COUNT_SIZE);
+        channel.force();
+        sealed = false;
+    }
+
+    /**
+     * Forces the heap file and the stored map to disk, and seals the map, so
+     * that it is trusted when the table is opened again. Pages must not be
+     * written to the heap file meanwhile.
+     */
+    public synchronized void seal() throws IOException {
+        // a map this process did not load is as the last one left it
+        if (!loaded || sealed)
+            return;
+        heap.force();
+        channel.force();
+        byte[] seal = new byte[4];
+        ByteBuffer.wrap(seal).putInt(SEALED);
+        channel.write(seal, COUNT_SIZE);
+        channel.force();
+        sealed = true;
+    }
+
+    /**
+     * Records that empty pages from (inclusive) to to (exclusive) were
+     * appended to the heap file, and updates the stored map to match.
+     */
+    public synchronized void pagesAdded(int from, int to) throws IOException {
+        load();
+        for (int p = from; p < to; ++p)
+            setFree(p, true);
+        store(from, to, true);
+    }
+
+    /** Sets the stored bits of pages from (inclusive) to to (exclusive). */
+    private void store(int from, int to, boolean hasRoom) throws IOException {
+        unseal();
+        int first = from;
+        if (to > storedPages) {
+            // pages skipped over read back as zeroes, i.e. empty pages
+            if (from > storedPages) {
+                stored.set(storedPages, from);
+                first = storedPages;
+            }
+            storedPages = to;
+            byte[] count = new byte[COUNT_SIZE];
+            ByteBuffer.wrap(count).putInt(storedPages);
+            channel.write(count, 0);
+        }
+        stored.set(from, to, hasRoom);
+        channel.write(bytes(stored, first / 8, (to - 1) / 8 + 1), HEADER_SIZE + first / 8);
+    }
+
+    /** Closes the stored map; it is reopened on the next access. */
+    public void close() {
+        channel.close();
+    }
+
+    /**
+     * Reads the stored map, or rebuilds it if it is missing, unsealed or out
+     * of date with the heap file.
+     */
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        int pageSize = BufferPool.getPageSize();
+        int heapPages = (int) (heap.size() / pageSize);
+        numPages = heapPages;
+        storedPages = heapPages;
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            if (channel.read(header, 0) == HEADER_SIZE
+                    && fields.getInt() == heapPages && fields.getInt() == SEALED) {
+                byte[] bits = new byte[(heapPages + 7) / 8];
+                if (channel.read(bits, HEADER_SIZE) == bits.length || bits.length == 0) {
+                    stored = BitSet.valueOf(bits);
+                    free = (BitSet) stored.clone();
+                    sealed = true;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // fall through and rebuild the map
+        }
+
+        stored = new BitSet(heapPages);
+        byte[] header = new byte[headerSize];
+        for (int p = 0; p < heapPages; ++p) {
+            try {
+                if (heap.read(header, (long) p * pageSize) != headerSize || hasEmptySlot(header))
+                    stored.set(p);
+            } catch (IOException e) {
+                // only a hint; an insert will find out if the page is full
+                stored.set(p);
+            }
+        }
+        free = (BitSet) stored.clone();
+        sealed = false;
+        try {
+            // unsealed until the next clean shutdown
+            byte[] data = new byte[HEADER_SIZE + (heapPages + 7) / 8];
+            ByteBuffer.wrap(data).putInt(heapPages);
+            byte[] bits = bytes(stored, 0, (heapPages + 7) / 8);
+            System.arraycopy(bits, 0, data, HEADER_SIZE, bits.length);
+            channel.write(data, 0);
+        } catch (IOException e) {
+            // the map will be rebuilt again next time
+        }
+    }
+
+    private boolean hasEmptySlot(byte[] header) {
+        for (int i = 0; i < numSlots; ++i) {
+            if (((header[i / 8] >> (i % 8)) & 1) == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /** @return bytes from (inclusive) to to (exclusive) of a bit set */
+    private static byte[] bytes(BitSet bits, int from, int to) {
+        byte[] range = new byte[to - from];
+        for (int i = 0; i < range.length; ++i) {
+            int base = (from + i) * 8;
+            for (int bit = 0; bit < 8; ++bit) {
+                if (bits.get(base + bit))
+                    range[i] |= 1 << bit;
+            }
+        }
+        return range;
+    }
+}
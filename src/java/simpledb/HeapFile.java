@@ -2,8 +2,6 @@ package simpledb;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.util.*;
 
 /**
@@ -19,50 +17,165 @@ import java.util.*;
 public class HeapFile implements DbFile {
 
     private File storefile;
-//    private RandomAccessFile raf;
-//    private FileChannel fc;
+    private PageChannel channel;
+    private volatile boolean mapped;
     private TupleDesc tuple_desc;
 //    private int page_tuple_num;
 //    private int page_header_size;
 //    private int page_num;
     private int page_size;
 //    private byte[] totalheader;
-    private ArrayList<Page> modifiedpage;
+    private FreeSpaceMap freespace;
+    private final Object extendlock;
 
     private class itr implements DbFileIterator {
         private TransactionId txnid;
         private Iterator<Tuple> fileitr;
+        private Tuple ahead; // read by hasNext, returned by next
+        private BitSet returned; // the slots of the page open returned so far
         private int pageopened;
+        private ReadAhead readahead;
+        private ScanRing ring;
 
         public itr(TransactionId txnid) {
             this.txnid = txnid;
             this.fileitr = null;
+            this.ahead = null;
+            this.returned = new BitSet();
             this.pageopened = 0;
+            this.readahead = null;
+            this.ring = null;
         }
 
         public void open() throws DbException, TransactionAbortedException {
+            // mapped files are paged in by the OS and need no read-ahead
+            if (!mapped) {
+                readahead = new ReadAhead(channel, 0, BufferPool.getPageSize()) {
+                    @Override
+                    protected boolean isCached(int pageNo) {
+                        return Database.getBufferPool().isCached(new HeapPageId(getId(), pageNo));
+                    }
+                };
+                readahead.access(0, numPages());
+            }
+            // a scan of a table larger than the pool recycles a few frames
+            ring = Database.getBufferPool().getScanRing(numPages());
+            // pages are locked as they are read, and the table IS; past the
+            // escalation threshold, the table is locked S instead
             PageId pageid = new HeapPageId(getId(), 0);
-            HeapPage filepage = (HeapPage)Database.getBufferPool().getPage(txnid, pageid, Permissions.READ_ONLY);
-            fileitr = filepage.iterator();
+            HeapPage filepage = scanPage(pageid);
+            fileitr = tuplesOf(filepage);
+            ahead = null;
+            returned.clear();
+        }
+
+        /**
+         * Reads in a page of the scan; under row locking, the tuples of the
+         * page are locked instead of the page, by hasNext.
+         */
+        private HeapPage scanPage(PageId pageid) throws DbException, TransactionAbortedException {
+            BufferPool bufferpool = Database.getBufferPool();
+            if (BufferPool.isRowLocking())
+                return (HeapPage) bufferpool.getPageOfTuples(txnid, pageid, ring);
+            return (HeapPage) bufferpool.getPage(txnid, pageid, Permissions.READ_ONLY, ring);
+        }
+
+        /**
+         * @return the tuples of a page as the transaction sees them under
+         *         row locking: without those it deleted, which are still on
+         *         the page until commit, and with those it inserted, which
+         *         are not on it yet
+         */
+        private Iterator<Tuple> tuplesOf(HeapPage page) {
+            // a commit may be applying its changes to the page meanwhile
+            final Iterator<Tuple> it = BufferPool.isRowLocking()
+                ? page.tuplesNow().iterator() : page.iterator();
+            final Set<RecordId> deleted = Database.getBufferPool().getDeferredDeletes(txnid, page.getId());
+            List<Tuple> inserted = Database.getBufferPool().getDeferredInserts(txnid, page.getId());
+            if (deleted == null && inserted == null)
+                return it;
+            final Iterator<Tuple> pending = inserted == null
+                ? Collections.<Tuple>emptyIterator() : inserted.iterator();
+            return new Iterator<Tuple>() {
+                private Tuple next;
+
+                public boolean hasNext() {
+                    while (next == null && it.hasNext()) {
+                        Tuple t = it.next();
+                        if (deleted == null || !deleted.contains(t.getRecordId()))
+                            next = t;
+                    }
+                    if (next == null && pending.hasNext())
+                        next = pending.next();
+                    return next != null;
+                }
+
+                public Tuple next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    Tuple t = next;
+                    next = null;
+                    return t;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
         public boolean hasNext() throws DbException, TransactionAbortedException{
+            while (ahead == null) {
+                Tuple t = nextOnPages();
+                if (t == null)
+                    return false;
+                // under row locking, a tuple another transaction is changing
+                // is waited for; if that transaction changed the page, the
+                // rest of the page is read again, as it left it
+                if (BufferPool.isRowLocking()
+                    && Database.getBufferPool().readTuple(txnid, t) != t) {
+                    HeapPage filepage = scanPage(new HeapPageId(getId(), pageopened));
+                    fileitr = tuplesOf(filepage);
+                    continue;
+                }
+                ahead = t;
+                returned.set(t.getRecordId().getTupleNumber());
+            }
+            return true;
+        }
+
+        /**
+         * @return the next tuple on the pages of the file the scan did not
+         *         return yet, or null if there is none
+         */
+        private Tuple nextOnPages() throws DbException, TransactionAbortedException {
             if (fileitr == null)
-                return false;
-            if (fileitr.hasNext())
-                return true;
-            if (pageopened<numPages()-1) {
+                return null;
+            // skips empty slots, which deletes deferred under row locking
+            // leave ahead of tuples inserted since
+            while (fileitr.hasNext()) {
+                Tuple t = fileitr.next();
+                if (!returned.get(t.getRecordId().getTupleNumber()))
+                    return t;
+            }
+            int numpages = numPages();
+            // skip over empty pages, e.g. ones preallocated for inserts
+            while (pageopened<numpages-1) {
                 ++pageopened;
+                if (readahead != null)
+                    readahead.access(pageopened, numpages);
                 PageId pageid = new HeapPageId(getId(), pageopened);
-                HeapPage filepage = (HeapPage)Database.getBufferPool().getPage(txnid, pageid, Permissions.READ_ONLY);
-                fileitr = filepage.iterator();
-                return fileitr.hasNext();
+                HeapPage filepage = scanPage(pageid);
+                fileitr = tuplesOf(filepage);
+                returned.clear();
+                if (fileitr.hasNext())
+                    return fileitr.next();
             }
-            return false;
+            return null;
         }
 
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (fileitr == null)
+            if (!hasNext())
                 throw new NoSuchElementException();
 //            if (fileitr.hasNext())
 //                return fileitr.next();
@@ -72,7 +185,9 @@ public class HeapFile implements DbFile {
 //            HeapPage filepage = (HeapPage)Database.getBufferPool().getPage(txnid, pageid, Permissions.READ_ONLY);
 //            fileitr = filepage.iterator();
 
-            return fileitr.next();
+            Tuple t = ahead;
+            ahead = null;
+            return t;
         }
 
         public void rewind() throws DbException, TransactionAbortedException {
@@ -83,6 +198,9 @@ public class HeapFile implements DbFile {
         public void close() {
             pageopened = 0;
             fileitr = null;
+            ahead = null;
+            readahead = null;
+            ring = null;
         }
     }
 
@@ -96,7 +214,8 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         storefile = f;
-//        qssszwzraf.getChannel();
+        channel = new PageChannel(f);
+        mapped = false;
         tuple_desc = td;
 //        page_tuple_num = (BufferPool.getPageSize() * 8) / (tuple_desc.getSize() * 8 + 1);
 //        page_header_size = (int)Math.ceil(page_tuple_num / 8);
@@ -105,7 +224,16 @@ public class HeapFile implements DbFile {
 //        if (storefile.length()%page_size != 0)
 //            ++page_num;
 //        totalheader = new byte[page_header_size * page_num];
-        modifiedpage = new ArrayList<Page>();
+        // a claim on a page ends when the transaction gives up its lock;
+        // under row locking, inserts share pages, so claims end at once
+        freespace = new FreeSpaceMap(f, channel, td) {
+            @Override
+            protected boolean isInserting(TransactionId owner, int pageNo) {
+                return !BufferPool.isRowLocking()
+                    && Database.getBufferPool().holdsLock(owner, new HeapPageId(getId(), pageNo));
+            }
+        };
+        extendlock = new Object();
     }
 
     /**
@@ -144,52 +272,53 @@ public class HeapFile implements DbFile {
         return tuple_desc;
     }
 
+    /**
+     * Selects whether pages of this file are read through a memory mapping
+     * of the file instead of read calls. In mapped mode readPage builds each
+     * HeapPage directly over the mapped region, so scans of large,
+     * read-mostly tables pay neither a syscall nor a page-sized allocation
+     * per page. The mapping follows the file as inserts extend it.
+     *
+     * @param mapped true to read pages through a memory mapping
+     */
+    public void setMemoryMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return mapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         int pagenum = pid.getPageNumber();
         int pagesize = BufferPool.getPageSize();
-        byte[] temp = new byte[pagesize];
-//        ByteBuffer tempbuffer = ByteBuffer.wrap(temp);
+        long offset = (long) pagenum * pagesize;
         HeapPage heapPage = null;
-//        FileLock fl = null;
-//        try {
-////            fl = fc.lock(pagenum * pagesize, pagesize, true);
-//            fl = fc.lock();
-//            fc.position(pagenum * pagesize);
-//            int cnt = fc.read(tempbuffer);
-//            fc.read(tempbuffer, pagenum * pagesize, pagesize);
         try {
-            RandomAccessFile f = new RandomAccessFile(storefile, "r");
-            f.seek(pagenum * pagesize);
-            int cnt = 0;
-            while (cnt != pagesize) {
-                cnt += f.read(temp, cnt, pagesize - cnt);
+            // a short read means the page lies past the end of the file;
+            // callers extending the file rely on getting null back here
+            if (mapped) {
+                ByteBuffer region = channel.map(offset, pagesize);
+                if (region != null)
+                    heapPage = new HeapPage((HeapPageId) pid, region);
+            } else {
+                byte[] temp = new byte[pagesize];
+                if (channel.read(temp, offset) == pagesize)
+                    heapPage = new HeapPage((HeapPageId) pid, temp);
             }
-            if (cnt == pagesize)
-                heapPage = new HeapPage((HeapPageId) pid, temp);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        catch (IndexOutOfBoundsException e) {
-            heapPage = null;
-        }
-//            fl.release();
-//        }
-//        catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        finally {
-//            try {
-//                if (fl != null)
-//                    fl.release();
-//            }
-//            catch (IOException e) {
-//                e.printStackTrace();
-//            }
-////            fl.release();
-//        }
+        // pages are read again after a rollback discarded them, which
+        // corrects what the free space map knows about them
+        if (heapPage != null)
+            freespace.setFree(pagenum, heapPage.getNumEmptySlots() > 0);
 
         return heapPage;
     }
@@ -199,29 +328,27 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int pagenum = page.getId().getPageNumber();
-        HeapPage heappage = (HeapPage)page;
-        byte[] temp = heappage.getPageData();
-//        ByteBuffer tempbuffer = ByteBuffer.wrap(temp);
+        byte[] temp = page.getPageData();
         int pagesize = BufferPool.getPageSize();
-//        FileLock fl = null;
-//        try {
-//            fl = fc.lock(pagenum * pagesize, pagesize, false);
-        RandomAccessFile f = new RandomAccessFile(storefile, "rw");
-        f.seek(pagenum * pagesize);
-        f.write(temp);
-//            fl = fc.lock();
-//            fc.position(pagenum * pagesize);
-//            fc.write(tempbuffer);
-//        }
-//        catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        finally {
-//            if (fl != null)
-//                fl.release();
-//        }
-
-        Database.getBufferPool().rwl.readlock().unlock();
+        long offset = (long) pagenum * pagesize;
+        freespace.unseal();
+        if (offset >= channel.size()) {
+            // may race with extend() over the end of the file
+            synchronized (extendlock) {
+                channel.write(temp, offset);
+            }
+        } else {
+            channel.write(temp, offset);
+        }
+        freespace.pageWritten(pagenum, ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    /**
+     * @return the map of the pages of this file that have room for another
+     *         tuple
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freespace;
     }
 
     /**
@@ -229,25 +356,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-//        FileLock fl = null;
-//        int res = 0;
-//        try {
-//            fl = fc.lock(0L, Long.MAX_VALUE, true);
-//            res =  (int)(fc.size() / BufferPool.getPageSize());
-//        }
-//        catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        finally {
-//            try {
-//                if (fl != null)
-//                    fl.release();
-//            }
-//            catch (IOException e) {
-//                e.printStackTrace();
-//            }
-//        }
-        return (int)storefile.length() / BufferPool.getPageSize();
+        return (int) (channel.size() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -255,38 +364,78 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-//        System.out.println(numPages());
-        int i = 0;
-        PageId pageid = null;
-//        for (int i = 0; i < numPages(); ++i) {
-//            System.out.println(i);
+        // each transaction keeps inserting into a page of its own, claimed
+        // in the free space map, so concurrent inserts do not queue up on
+        // the lock of one page. The map is only a hint; the page is checked
+        // under its write lock
+        BufferPool bufferpool = Database.getBufferPool();
         while (true) {
-            pageid = new HeapPageId(getId(), i);
-//            System.out.println("here");
-            HeapPage filepage = (HeapPage) Database.getBufferPool().getPage(tid, pageid, Permissions.READ_WRITE);
-//            System.out.println(filepage);
-            if (filepage.getNumEmptySlots() > 0 ) {
-//                System.out.println("here");
-                filepage.insertTuple(t);
-                filepage.markDirty(true, tid);
-                modifiedpage.add(filepage);
-                return modifiedpage;
+            int pageno = freespace.claim(tid);
+            if (pageno < 0) {
+                pageno = freespace.allocate(tid);
+                extend(pageno, freespace.extent());
+            }
+            PageId pageid = new HeapPageId(getId(), pageno);
+            if (BufferPool.isRowLocking()) {
+                // the page changes at commit; see BufferPool#deferInsert
+                int room = bufferpool.deferInsert(tid, pageid, t);
+                freespace.setFree(pageno, room > 0);
+                if (room >= 0)
+                    return new ArrayList<Page>();
+                continue;
             }
-            else {
-                Database.getBufferPool().releasePage(tid, pageid);
-                ++i;
-//                System.out.println(i);
-                //releasing lock codes need to be finished!!!
+            boolean locked = bufferpool.holdsLock(tid, pageid);
+            HeapPage filepage = (HeapPage) bufferpool.getPage(tid, pageid, Permissions.READ_WRITE);
+            synchronized (filepage) {
+                // the page cleaner may have let the pool evict it meanwhile
+                if (!bufferpool.isCached(filepage))
+                    continue;
+                if (filepage.getNumEmptySlots() > 0) {
+                    filepage.insertTuple(t);
+                    filepage.markDirty(true, tid);
+                    boolean room = filepage.getNumEmptySlots() > 0;
+                    freespace.setFree(pageno, room);
+                    if (!room)
+                        freespace.unclaim(pageno, tid);
+                    ArrayList<Page> modified = new ArrayList<Page>();
+                    modified.add(filepage);
+                    return modified;
+                }
             }
+            freespace.setFree(pageno, false);
+            freespace.unclaim(pageno, tid);
+            // the page was only locked to look for room
+            if (!locked)
+                bufferpool.releasePage(tid, pageid);
         }
+    }
 
-//        HeapPageId hpid=new HeapPageId(getId(), numPages());
-//        HeapPage hp=new HeapPage(hpid, HeapPage.createEmptyPageData());
-//        hp.insertTuple(t);
-//        hp.markDirty(true, tid);
-//        writePage(hp);
-//        modifiedpage.add(hp);
-//        return modifiedpage;
+    /**
+     * Records whether a page has room after changes that bypassed
+     * {@link #insertTuple} and {@link #deleteTuple}, e.g. ones deferred
+     * under row locking.
+     */
+    void markFree(int pageno, boolean hasRoom) {
+        freespace.setFree(pageno, hasRoom);
+    }
+
+    /**
+     * Makes sure the file extends past the specified page by appending
+     * empty pages, count of them starting at pageno. Pages that are already
+     * in the file are never overwritten, whether they were appended by
+     * another insert or written by the BufferPool.
+     */
+    private void extend(int pageno, int count) throws IOException {
+        int pagesize = BufferPool.getPageSize();
+        synchronized (extendlock) {
+            int start = numPages();
+            int end = pageno + count;
+            if (end <= start)
+                return;
+            freespace.unseal();
+            channel.write(new byte[(end - start) * pagesize], (long) start * pagesize);
+            freespace.pagesAdded(start, end);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -297,13 +446,27 @@ public class HeapFile implements DbFile {
         PageId tuplepageid = t.getRecordId().getPageId();
         if (tuplepageid.getTableId() != getId())
             throw new DbException("not a member!");
-        HeapPage tuplepage = (HeapPage) Database.getBufferPool().getPage(tid, tuplepageid, Permissions.READ_WRITE);
-//        if (!tuplepage.isDirty().equals(tid))
-//            throw new DbException("cannot be deleted!");
-        tuplepage.deleteTuple(t);
-        tuplepage.markDirty(true, tid);
-        modifiedpage.add(tuplepage);
-        return modifiedpage;
+        if (BufferPool.isRowLocking()) {
+            // the page changes at commit; see BufferPool#deferDelete
+            Database.getBufferPool().deferDelete(tid, t);
+            return new ArrayList<Page>();
+        }
+        while (true) {
+            HeapPage tuplepage = (HeapPage) Database.getBufferPool().getPage(tid, tuplepageid, Permissions.READ_WRITE);
+//            if (!tuplepage.isDirty().equals(tid))
+//                throw new DbException("cannot be deleted!");
+            synchronized (tuplepage) {
+                // the page cleaner may have let the pool evict it meanwhile
+                if (!Database.getBufferPool().isCached(tuplepage))
+                    continue;
+                tuplepage.deleteTuple(t);
+                tuplepage.markDirty(true, tid);
+            }
+            freespace.setFree(tuplepageid.getPageNumber(), true);
+            ArrayList<Page> modified = new ArrayList<Page>();
+            modified.add(tuplepage);
+            return modified;
+        }
     }
 
     // see DbFile.java for javadocs
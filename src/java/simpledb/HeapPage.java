@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -19,11 +20,26 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    // the bytes this page was read from; tuples[i] is null until slot i is
+    // first read or written
+    private ByteBuffer data;
+    // the off-heap frame data was moved to, if any
+    private ByteBuffer frame;
+
     private boolean dirty = false;
     private TransactionId tid = null;
 
+    // number of changes made to this page, and that number when the page
+    // was last written out while dirty, or -1. A page the cleaner wrote is
+    // clean but remembers its last dirtier, and is dirty again as soon as
+    // it changes
+    private long version = 0;
+    private long writtenVersion = -1;
+    private boolean cleaned = false;
+
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private ByteBuffer oldDataSource;
+    private final Object oldDataLock = new Object();
 
     private class itr implements Iterator<Tuple> {
         int cursor;
@@ -34,7 +50,7 @@ public class HeapPage implements Page {
 
         public Tuple next() {
             if (cursor < tuples.length)
-                return tuples[cursor++];
+                return getTuple(cursor++);
             return null;
         }
 
@@ -61,32 +77,43 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data and decodes tuples from it as
+     * they are read, so data must not be modified afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+        synchronized(oldDataLock)
+        {
+            oldDataSource = null;
+        }
+        setBeforeImage();
+    }
+
+    /**
+     * Create a HeapPage directly over a region of a memory-mapped heap file.
+     * The region is decoded in place instead of being copied into a byte
+     * array first; its bytes are only copied out, as the before image, when
+     * the page is first dirtied or its before image is requested.
+     *
+     * @see HeapFile#setMemoryMapped
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
+        this.oldDataSource = data.duplicate();
 
-        // allocate and read the header slots of this page
+        // allocate and read the header slots of this page; the tuples are
+        // only decoded when they are first asked for
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        if (data.remaining() < header.length + td.getSize() * numSlots)
+            throw new EOFException("short page");
+        data.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -114,6 +141,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                copyBeforeImage();
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -126,12 +154,84 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // outside of oldDataLock, which is taken while holding the page
+        byte[] image = getPageData().clone();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = image;
+        oldDataSource = null;
         }
     }
 
+    /**
+     * Copies the before image out of the mapped region this page was read
+     * from, if that has not happened yet. Must be called before the page is
+     * modified, since writing the page back changes the mapped region.
+     */
+    private void copyBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldDataSource != null) {
+                oldData = new byte[oldDataSource.remaining()];
+                oldDataSource.duplicate().get(oldData);
+                oldDataSource = null;
+            }
+        }
+    }
+
+    /**
+     * Moves the bytes of a page that was just read from a byte array into an
+     * off-heap frame, which the page decodes its tuples from from then on.
+     * A clean page also drops its before image, which is copied out of the
+     * frame again if it is needed.
+     *
+     * @param frame a frame of a {@link FrameArena}
+     * @return false if the page was not moved, e.g. because it is read
+     *         through a file mapping, which is off-heap already
+     */
+    synchronized boolean moveTo(ByteBuffer frame) {
+        if (this.frame != null || !data.hasArray() || frame.capacity() < data.capacity())
+            return false;
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        dst.put(data.duplicate());
+        data = frame;
+        this.frame = frame;
+        synchronized(oldDataLock)
+        {
+            if (!dirty) {
+                oldData = null;
+                oldDataSource = frame.duplicate();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the bytes of this page out of its off-heap frame, so that the
+     * frame can be reused while the page is still referenced, e.g. by a
+     * running scan, after it left the buffer pool.
+     *
+     * @return the frame the page was in, or null if it was not in one
+     */
+    synchronized ByteBuffer detach() {
+        ByteBuffer f = frame;
+        if (f == null)
+            return null;
+        byte[] copy = new byte[f.capacity()];
+        ByteBuffer src = f.duplicate();
+        src.clear();
+        src.get(copy);
+        data = ByteBuffer.wrap(copy);
+        frame = null;
+        synchronized(oldDataLock)
+        {
+            if (oldDataSource != null)
+                oldDataSource = data.duplicate();
+        }
+        return f;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -142,37 +242,38 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in the specified slot, creating it over the bytes of
+     * the slot the first time it is asked for.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private synchronized Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null && isSlotUsed(slotId)) {
+            t = new Tuple(td, data, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    /** @return the tuple in the specified slot, or null if the slot is empty */
+    synchronized Tuple tupleAt(int slotId) {
+        return isSlotUsed(slotId) ? getTuple(slotId) : null;
+    }
 
-        return t;
+    /**
+     * @return the tuples on this page, as no change made while holding its
+     *         monitor leaves it halfway
+     */
+    synchronized List<Tuple> tuplesNow() {
+        List<Tuple> now = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = iterator(); it.hasNext(); )
+            now.add(it.next());
+        return now;
+    }
+
+    /** @return the offset in the page of the first byte of a slot */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
     }
 
     /**
@@ -182,69 +283,64 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * Tuples that are still unchanged since the page was read are copied
+     * from the bytes they were read from instead of being encoded again.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        int tupleSize = td.getSize();
+        // empty slots and padding stay zero
+        byte[] page = new byte[len];
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, page, 0, header.length);
 
         // create the tuples
+        ByteArrayOutputStream baos = null;
+        DataOutputStream dos = null;
         for (int i=0; i<tuples.length; i++) {
+            if (!isSlotUsed(i))
+                continue;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+            int off = slotOffset(i);
+            Tuple t = tuples[i];
+            if (t == null || t.isBackedBy(data, off)) {
+                if (data.hasArray()) {
+                    System.arraycopy(data.array(), data.arrayOffset() + off, page, off, tupleSize);
+                } else {
+                    ByteBuffer src = data.duplicate();
+                    src.position(off);
+                    src.get(page, off, tupleSize);
                 }
                 continue;
             }
 
-            // non-empty slot
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(tupleSize);
+                dos = new DataOutputStream(baos);
+            }
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.arraycopy(baos.toByteArray(), 0, page, off, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -268,13 +364,14 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         int idx = t.getRecordId().getTupleNumber();
         if (!pid.equals(t.getRecordId().getPageId()) || !isSlotUsed(idx))
             throw new DbException("error delete");
         markSlotUsed(idx, false);
+        ++version;
     }
 
     /**
@@ -284,7 +381,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (!td.equals(t.getTupleDesc()))
@@ -295,30 +392,77 @@ public class HeapPage implements Page {
                 t.setRecordId(new RecordId(pid, i));
                 tuples[i] = t;
                 markSlotUsed(i, true);
+                ++version;
                 return;
             }
         }
         throw new DbException("no empty slots!");
     }
 
+    /**
+     * Adds the specified tuple to the page in the specified slot, which a
+     * deferred insert reserved (see BufferPool#deferInsert).
+     * @throws DbException if the slot is not empty or tupledesc is mismatch.
+     */
+    synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc mismatch!");
+        if (isSlotUsed(slot))
+            throw new DbException("slot is not empty!");
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        ++version;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
+        if (dirty)
+            copyBeforeImage();
         this.dirty = dirty;
         this.tid = tid;
+        cleaned = false;
+    }
+
+    /**
+     * Records that the page, as it is now, was written to disk while it
+     * stays dirty. Call while holding the page.
+     */
+    synchronized void setWritten() {
+        writtenVersion = version;
+    }
+
+    /**
+     * Records that the page, as it is now, was written to disk for the
+     * transaction that dirtied it, e.g. by the page cleaner, and marks it
+     * clean until it changes again. Call while holding the page.
+     */
+    synchronized void setCleaned() {
+        writtenVersion = version;
+        dirty = false;
+        cleaned = true;
+    }
+
+    /**
+     * @return true if the page has not changed since it was last written
+     *         with {@link #setWritten}, so writing it again can be skipped
+     */
+    synchronized boolean isWritten() {
+        return writtenVersion == version;
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
-        if (dirty)
+        if (dirty || (cleaned && writtenVersion != version))
             return tid;
         return null;      
     }
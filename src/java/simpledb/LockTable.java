@@ -0,0 +1,834 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockTable grants the locks of transactions on resources, such as tables,
+ * pages and tuples.
+ * <p>
+ * Each locked resource has a queue of requests: the group of requests
+ * granted, whose modes are compatible with each other, followed by the
+ * requests waiting, in the order they arrived. A request is granted when
+ * it is compatible with the group and nothing waits before it, so that a
+ * stream of readers cannot starve a writer. A transaction that holds a
+ * shared lock and asks for an exclusive one upgrades: its request waits
+ * ahead of every other, for the rest of the group to leave. Whoever
+ * releases a lock grants the requests it unblocks, in order, and wakes
+ * exactly their threads.
+ * <p>
+ * The queues are kept in a fixed number of stripes, each a hash table with
+ * its own latch, so that transactions locking different resources take no
+ * common lock. Requests granted at once do no deadlock detection at all.
+ * By default a request that must wait first checks whether waiting would
+ * close a cycle of transactions waiting for each other; with a detection
+ * interval set (see {@link #setDeadlockInterval}), requests wait right
+ * away and a background thread searches the graph for cycles instead,
+ * while any request waits. Either way, a victim of each cycle, chosen as
+ * {@link #setVictim} says, is aborted: its waiting request is withdrawn,
+ * and the transaction gets a {@link TransactionAbortedException}.
+ * <p>
+ * Instead of detecting deadlocks, the table can prevent them, ordering
+ * transactions by age (see {@link #setDeadlockPolicy}): a transaction that
+ * began earlier, with a lower id, is older. Under wait-die, a request may
+ * wait only for younger transactions; a younger requester aborts instead.
+ * Under wound-wait, a request may wait only for older transactions; the
+ * younger ones it would wait for are wounded, so that they abort as soon
+ * as they wait or request another lock. Either way every wait is from an
+ * older transaction to a younger one, or the reverse, so no cycle forms
+ * and no graph is searched. A transaction restarted after an abort has a
+ * new id, and so is younger than before.
+ * <p>
+ * Pages are locked in a hierarchy (see {@link #acquirePage}): a
+ * transaction first locks the table of a page in an intention mode, which
+ * says it will lock pages of the table in the matching mode, and then the
+ * page. A scan locks each page it reads, so that writers of other pages
+ * of the table go ahead. A transaction that locks the whole table takes
+ * no lock on the pages its table lock covers. Once a transaction holds
+ * more page locks on a table than {@link #setEscalationThreshold} allows,
+ * it locks the whole table instead and gives them up. Tuples, keyed by
+ * their {@link RecordId}, are locked below their page in the same way
+ * (see {@link #acquireRecord}).
+ * <p>
+ * Under row locking (see {@link BufferPool#setRowLocking}), transactions
+ * inserting and deleting tuples of the same page hold IX on the table and
+ * the page together, and X only on their tuples; none holds X on the
+ * page, although each changes it at commit. Those changes are not
+ * isolated by this table: the BufferPool latches the page while applying
+ * them. Scans in this mode hold IS on the table and the page, and S on a
+ * tuple only while reading it, so that transactions that scanned a table
+ * change different tuples of it without waiting for each other; a reader
+ * holding S on the page or the table, e.g. after escalation, still keeps
+ * the writers out.
+ */
+public class LockTable {
+
+    /**
+     * The modes a resource can be locked in. The intention modes are for
+     * tables and pages: they announce locks on pages of the table, or
+     * tuples of the page, in the matching mode. IX is compatible with IX
+     * on a page even though both holders will change it, with deferred
+     * changes of different tuples; see the class comment.
+     */
+    enum Mode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** @return true if a lock of this mode and one of the other can be held together */
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode allows what the other does */
+        boolean covers(Mode other) {
+            return this == other || this == EXCLUSIVE || other == INTENTION_SHARED
+                || (this == SHARED_INTENTION_EXCLUSIVE
+                    && (other == SHARED || other == INTENTION_EXCLUSIVE));
+        }
+
+        /** @return the weakest mode that covers both this mode and the other */
+        Mode join(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SHARED_INTENTION_EXCLUSIVE; // of SHARED and INTENTION_EXCLUSIVE
+        }
+
+        /** @return the mode a table is locked in before a page of it is locked in this one */
+        Mode intention() {
+            return this == SHARED || this == INTENTION_SHARED
+                ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+        }
+    }
+
+    /** How deadlocks are dealt with. */
+    public enum Policy {
+        /** search for cycles of waiting transactions, and abort a victim of each */
+        DETECT,
+        /** an older transaction waits for a younger one; a younger one aborts instead */
+        WAIT_DIE,
+        /** a younger transaction waits for an older one; an older one aborts it instead */
+        WOUND_WAIT
+    }
+
+    /** How the transaction to abort in a deadlock is chosen. */
+    public enum Victim {
+        /** the transaction whose request closed the cycle, or the youngest */
+        REQUESTER,
+        /** the transaction that began last */
+        YOUNGEST,
+        /** the transaction that requested the fewest locks so far */
+        LEAST_WORK,
+        /** the transaction that holds the fewest locks */
+        FEWEST_LOCKS
+    }
+
+    private static final int STRIPES = 64;
+
+    private static volatile Policy policy = Policy.valueOf(
+        System.getProperty("simpledb.DeadlockPolicy", Policy.DETECT.name()));
+    private static volatile int escalationThreshold =
+        Integer.getInteger("simpledb.LockEscalation", 1000);
+    private static volatile long deadlockInterval =
+        Long.getLong("simpledb.DeadlockInterval", 0);
+    private static volatile Victim victim = Victim.valueOf(
+        System.getProperty("simpledb.DeadlockVictim", Victim.REQUESTER.name()));
+
+    /** @return how deadlocks are dealt with */
+    public static Policy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets how deadlocks are dealt with. Meant to be set at startup, while
+     * no request waits.
+     */
+    public static void setDeadlockPolicy(Policy p) {
+        policy = p;
+    }
+
+    /**
+     * @return the milliseconds between searches of the background deadlock
+     *         detector, or 0 if blocked requests search for themselves
+     */
+    public static long getDeadlockInterval() {
+        return deadlockInterval;
+    }
+
+    /**
+     * Sets the milliseconds between searches of the background deadlock
+     * detector; 0 makes each request that blocks search instead.
+     */
+    public static void setDeadlockInterval(long ms) {
+        deadlockInterval = ms;
+    }
+
+    /**
+     * @return the number of page locks a transaction may hold on a table
+     *         before it locks the whole table instead, or 0 if it never does
+     */
+    public static int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on a table
+     * before it locks the whole table instead; 0 turns escalation off.
+     */
+    public static void setEscalationThreshold(int pages) {
+        escalationThreshold = pages;
+    }
+
+    /** @return how the victim of a deadlock is chosen */
+    public static Victim getVictim() {
+        return victim;
+    }
+
+    /** Sets how the victim of a deadlock is chosen. */
+    public static void setVictim(Victim v) {
+        victim = v;
+    }
+
+    /** A request of a transaction to lock a resource. */
+    private static class Request {
+        final TransactionId tid;
+        final Object key;
+        final Mode mode;
+        final boolean upgrade; // the transaction holds the resource in a weaker mode
+        boolean granted;
+        boolean aborted;       // withdrawn to break a deadlock
+        Condition ready;       // signalled once granted or aborted, while waiting
+
+        Request(TransactionId tid, Object key, Mode mode, boolean upgrade) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** The requests for a resource. */
+    private static class LockQueue {
+        final List<Request> granted = new ArrayList<Request>(2);
+        final LinkedList<Request> waiting = new LinkedList<Request>();
+        int upgrades; // upgrades at the head of waiting
+    }
+
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, LockQueue> queues = new HashMap<Object, LockQueue>();
+    }
+
+    /** The key a whole table is locked under. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId * 31 + 17;
+        }
+    }
+
+    /** What the table knows of a transaction. */
+    private static class Txn {
+        // the resources it holds a lock on
+        final Set<Object> held =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        // the requests it waits on
+        final Set<Request> waits =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+        final AtomicLong work = new AtomicLong(); // locks requested
+        volatile boolean wounded; // by an older transaction, under wound-wait
+        // the number of pages it holds a lock on, by table
+        final ConcurrentHashMap<Integer, AtomicInteger> pages =
+            new ConcurrentHashMap<Integer, AtomicInteger>();
+
+        AtomicInteger pagesOf(int tableId) {
+            AtomicInteger n = pages.get(tableId);
+            if (n == null) {
+                AtomicInteger created = new AtomicInteger();
+                n = pages.putIfAbsent(tableId, created);
+                if (n == null)
+                    n = created;
+            }
+            return n;
+        }
+
+        /** Records that it holds a lock on a resource. */
+        void hold(Object key) {
+            if (held.add(key) && key instanceof PageId)
+                pagesOf(((PageId) key).getTableId()).incrementAndGet();
+        }
+
+        /** Records that it gave up its lock on a resource. */
+        void unhold(Object key) {
+            if (held.remove(key) && key instanceof PageId)
+                pagesOf(((PageId) key).getTableId()).decrementAndGet();
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<TransactionId, Txn> txns =
+        new ConcurrentHashMap<TransactionId, Txn>();
+    // serializes searches for deadlocks, and guards detectorThread
+    private final Object detector = new Object();
+    private Thread detectorThread;
+
+    LockTable() {
+        for (int i = 0; i < STRIPES; ++i)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    private Txn txnOf(TransactionId tid) {
+        Txn t = txns.get(tid);
+        if (t == null) {
+            Txn created = new Txn();
+            t = txns.putIfAbsent(tid, created);
+            if (t == null)
+                t = created;
+        }
+        return t;
+    }
+
+    /**
+     * Locks a resource on behalf of a transaction, waiting until the lock
+     * is granted. A transaction that holds the resource in a mode that does
+     * not cover the one requested upgrades to the weakest mode covering
+     * both.
+     *
+     * @return the mode the transaction holds the resource in now
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock, or must abort to prevent one
+     */
+    Mode acquire(TransactionId tid, Object key, Mode mode)
+        throws TransactionAbortedException, InterruptedException {
+        Txn txn = txnOf(tid);
+        if (txn.wounded) {
+            Debug.log("WOUND-WAIT: transaction %d aborted", tid.getId());
+            throw new TransactionAbortedException();
+        }
+        txn.work.incrementAndGet();
+        Stripe stripe = stripeOf(key);
+        Request r;
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(key);
+            if (q == null) {
+                q = new LockQueue();
+                stripe.queues.put(key, q);
+            }
+            Request mine = grantedTo(q, tid);
+            if (mine != null && mine.mode.covers(mode))
+                return mine.mode;
+            r = new Request(tid, key, mine == null ? mode : mine.mode.join(mode), mine != null);
+            if (mine != null) {
+                q.waiting.add(q.upgrades++, r);
+            } else {
+                q.waiting.add(r);
+            }
+            grantWaiters(q);
+            if (r.granted)
+                return r.mode;
+            r.ready = stripe.latch.newCondition();
+            txn.waits.add(r);
+        } finally {
+            stripe.latch.unlock();
+        }
+
+        boolean done = false;
+        try {
+            Policy p = policy;
+            if (p == Policy.WAIT_DIE) {
+                if (mustDie(r))
+                    withdraw(r, true);
+            } else if (p == Policy.WOUND_WAIT) {
+                wound(r, txn);
+                // checked after waits were registered, so that wounding
+                // either sees this request or is seen here
+                if (txn.wounded)
+                    withdraw(r, true);
+            } else if (deadlockInterval > 0) {
+                startDetector();
+            } else {
+                resolveDeadlocks(r);
+            }
+            stripe.latch.lock();
+            try {
+                while (!r.granted && !r.aborted)
+                    r.ready.await();
+            } finally {
+                stripe.latch.unlock();
+            }
+            if (r.aborted) {
+                Debug.log("DEADLOCK: transaction %d aborted", tid.getId());
+                throw new TransactionAbortedException();
+            }
+            done = true;
+            return r.mode;
+        } finally {
+            // withdraw the request if aborted, interrupted or stopped
+            if (!done)
+                withdraw(r, false);
+            txn.waits.remove(r);
+        }
+    }
+
+    /** @return the request of a transaction granted in a queue, or null */
+    private static Request grantedTo(LockQueue q, TransactionId tid) {
+        for (Request g : q.granted)
+            if (g.tid.equals(tid))
+                return g;
+        return null;
+    }
+
+    /** @return true if the request is compatible with the group granted */
+    private static boolean grantable(LockQueue q, Request r) {
+        for (Request g : q.granted)
+            if (!g.tid.equals(r.tid) && !g.mode.compatible(r.mode))
+                return false;
+        return true;
+    }
+
+    /** Grants the requests at the head of the queue that can be. Holds the latch. */
+    private void grantWaiters(LockQueue q) {
+        while (!q.waiting.isEmpty()) {
+            Request r = q.waiting.getFirst();
+            if (!grantable(q, r))
+                break;
+            q.waiting.removeFirst();
+            if (r.upgrade) {
+                --q.upgrades;
+                q.granted.remove(grantedTo(q, r.tid));
+            }
+            r.granted = true;
+            q.granted.add(r);
+            txnOf(r.tid).hold(r.key);
+            if (r.ready != null)
+                r.ready.signal();
+        }
+    }
+
+    /**
+     * Withdraws a request that is still waiting; if it is to abort, wakes
+     * its thread to do so.
+     *
+     * @return true if it was waiting
+     */
+    private boolean withdraw(Request r, boolean abort) {
+        Stripe stripe = stripeOf(r.key);
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(r.key);
+            if (r.granted || q == null || !q.waiting.remove(r))
+                return false;
+            if (r.upgrade)
+                --q.upgrades;
+            // requests behind it may be grantable now
+            grantWaiters(q);
+            if (q.granted.isEmpty() && q.waiting.isEmpty())
+                stripe.queues.remove(r.key);
+            if (abort) {
+                r.aborted = true;
+                r.ready.signal();
+            }
+            return true;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Withdraws the requests a transaction waits on, and wakes its thread to abort. */
+    private void abort(TransactionId tid) {
+        Txn t = txns.get(tid);
+        if (t == null)
+            return;
+        for (Request r : t.waits)
+            withdraw(r, true);
+    }
+
+    /**
+     * @return the transactions a waiting request waits for: those holding
+     *         the resource in a mode it is not compatible with, and all
+     *         those waiting ahead of it, since waiters are granted strictly
+     *         in order; null if it is not waiting anymore
+     */
+    private Set<TransactionId> blockers(Request r) {
+        Stripe stripe = stripeOf(r.key);
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(r.key);
+            if (r.granted || q == null)
+                return null;
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Request g : q.granted)
+                if (!g.tid.equals(r.tid) && !g.mode.compatible(r.mode))
+                    blockers.add(g.tid);
+            for (Request w : q.waiting) {
+                if (w == r)
+                    return blockers;
+                if (!w.tid.equals(r.tid))
+                    blockers.add(w.tid);
+            }
+            return null;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * @return the transactions that wait behind an upgrade, and so wait for
+     *         it now
+     */
+    private Set<TransactionId> jumped(Request r) {
+        Set<TransactionId> behind = new HashSet<TransactionId>();
+        if (!r.upgrade)
+            return behind;
+        Stripe stripe = stripeOf(r.key);
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(r.key);
+            if (r.granted || q == null)
+                return behind;
+            boolean after = false;
+            for (Request w : q.waiting) {
+                if (after && !w.tid.equals(r.tid))
+                    behind.add(w.tid);
+                after |= w == r;
+            }
+            return behind;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    private static boolean older(TransactionId a, TransactionId b) {
+        return a.getId() < b.getId();
+    }
+
+    /**
+     * Applies wait-die to a request that waits: the younger waiters an
+     * upgrade jumps ahead of die.
+     *
+     * @return true if the requester waits for an older transaction, and so
+     *         dies
+     */
+    private boolean mustDie(Request r) {
+        Set<TransactionId> blockers = blockers(r);
+        if (blockers == null)
+            return false;
+        for (TransactionId b : blockers)
+            if (older(b, r.tid))
+                return true;
+        for (TransactionId t : jumped(r))
+            if (older(r.tid, t))
+                abort(t);
+        return false;
+    }
+
+    /**
+     * Applies wound-wait to a request that waits: it wounds the younger
+     * transactions it waits for, and is wounded if it jumped ahead of an
+     * older waiter.
+     */
+    private void wound(Request r, Txn txn) {
+        Set<TransactionId> blockers = blockers(r);
+        if (blockers == null)
+            return;
+        for (TransactionId b : blockers) {
+            Txn t = txns.get(b);
+            if (t != null && older(r.tid, b)) {
+                t.wounded = true;
+                abort(b);
+            }
+        }
+        for (TransactionId t : jumped(r))
+            if (older(t, r.tid))
+                txn.wounded = true;
+    }
+
+    /** @return the transactions that the requests a transaction waits on wait for */
+    private Set<TransactionId> blockers(TransactionId tid) {
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        Txn t = txns.get(tid);
+        if (t != null) {
+            for (Request r : t.waits) {
+                Set<TransactionId> b = blockers(r);
+                if (b != null)
+                    blockers.addAll(b);
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * Searches the graph of transactions waiting for each other, depth
+     * first, for a cycle through a transaction. Latches one queue at a
+     * time, so the graph may be slightly stale, but the transactions of a
+     * deadlock stay blocked.
+     *
+     * @return the transactions of a cycle, starting with the one given, or
+     *         null if it is in none
+     */
+    private List<TransactionId> cycleThrough(TransactionId start) {
+        List<TransactionId> path = new ArrayList<TransactionId>();
+        Deque<Iterator<TransactionId>> edges = new ArrayDeque<Iterator<TransactionId>>();
+        Set<TransactionId> visited = new HashSet<TransactionId>();
+        path.add(start);
+        visited.add(start);
+        edges.push(blockers(start).iterator());
+        while (!edges.isEmpty()) {
+            Iterator<TransactionId> it = edges.peek();
+            if (!it.hasNext()) {
+                edges.pop();
+                path.remove(path.size() - 1);
+                continue;
+            }
+            TransactionId t = it.next();
+            if (t.equals(start))
+                return path;
+            if (!visited.add(t))
+                continue;
+            path.add(t);
+            edges.push(blockers(t).iterator());
+        }
+        return null;
+    }
+
+    /** @return the transaction of a cycle to abort */
+    private TransactionId victimOf(List<TransactionId> cycle, TransactionId requester) {
+        Victim v = victim;
+        if (v == Victim.REQUESTER && requester != null)
+            return requester;
+        TransactionId chosen = null;
+        long least = Long.MAX_VALUE;
+        for (TransactionId t : cycle) {
+            long cost;
+            Txn txn = txns.get(t);
+            if (v == Victim.LEAST_WORK)
+                cost = txn == null ? 0 : txn.work.get();
+            else if (v == Victim.FEWEST_LOCKS)
+                cost = txn == null ? 0 : txn.held.size();
+            else
+                cost = 0;
+            // ties go to the youngest
+            if (chosen == null || cost < least
+                || (cost == least && t.getId() > chosen.getId())) {
+                chosen = t;
+                least = cost;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Breaks the cycles a request that waits closes, aborting a victim of
+     * each.
+     */
+    private void resolveDeadlocks(Request r) {
+        synchronized (detector) {
+            List<TransactionId> cycle;
+            while ((cycle = cycleThrough(r.tid)) != null) {
+                TransactionId t = victimOf(cycle, r.tid);
+                if (t.equals(r.tid)) {
+                    withdraw(r, true);
+                    return;
+                }
+                abort(t);
+            }
+        }
+    }
+
+    /** Starts the background deadlock detector, unless it is running already. */
+    private void startDetector() {
+        synchronized (detector) {
+            if (detectorThread != null)
+                return;
+            detectorThread = new Thread(new Runnable() {
+                public void run() {
+                    detect();
+                }
+            }, "simpledb-deadlock-detector");
+            detectorThread.setDaemon(true);
+            detectorThread.start();
+        }
+    }
+
+    /**
+     * Searches for deadlocks every interval, from each transaction that
+     * waits, until none does.
+     */
+    private void detect() {
+        while (true) {
+            long interval = deadlockInterval;
+            try {
+                Thread.sleep(Math.max(1, interval));
+            } catch (InterruptedException e) {
+                interval = 0;
+            }
+            synchronized (detector) {
+                boolean waiting = false;
+                for (Map.Entry<TransactionId, Txn> e : txns.entrySet()) {
+                    if (e.getValue().waits.isEmpty())
+                        continue;
+                    waiting = true;
+                    List<TransactionId> cycle;
+                    while ((cycle = cycleThrough(e.getKey())) != null)
+                        abort(victimOf(cycle, null));
+                }
+                // requests that blocked since search for themselves if the
+                // interval was set to 0
+                if (!waiting || interval <= 0) {
+                    detectorThread = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Locks a whole table on behalf of a transaction, so that it needs no
+     * lock on the pages of the table to read them (SHARED) or to read and
+     * write them (EXCLUSIVE).
+     *
+     * @return the mode the transaction holds the table in now
+     */
+    Mode acquireTable(TransactionId tid, int tableId, Mode mode)
+        throws TransactionAbortedException, InterruptedException {
+        return acquire(tid, new TableKey(tableId), mode);
+    }
+
+    /**
+     * Locks a page on behalf of a transaction: its table in the intention
+     * mode first, then the page, unless the lock on the table covers it.
+     * If the transaction holds as many page locks on the table as the
+     * escalation threshold, it locks the table instead, in SHARED mode if
+     * it only read the table and EXCLUSIVE otherwise, and releases its
+     * page locks on the table.
+     */
+    void acquirePage(TransactionId tid, PageId pid, Mode mode)
+        throws TransactionAbortedException, InterruptedException {
+        TableKey table = new TableKey(pid.getTableId());
+        Mode held = acquire(tid, table, mode.intention());
+        if (held.covers(mode))
+            return;
+        Txn txn = txnOf(tid);
+        int threshold = escalationThreshold;
+        if (threshold > 0 && !txn.held.contains(pid)
+            && txn.pagesOf(table.tableId).get() >= threshold) {
+            Mode escalated = held == Mode.INTENTION_SHARED && !mode.covers(Mode.INTENTION_EXCLUSIVE)
+                ? Mode.SHARED : Mode.EXCLUSIVE;
+            acquire(tid, table, escalated);
+            Debug.log("LOCK ESCALATION: transaction %d locks table %d %s",
+                      tid.getId(), table.tableId, escalated);
+            for (Object key : txn.held)
+                if (key instanceof PageId && ((PageId) key).getTableId() == table.tableId)
+                    release(tid, key);
+            return;
+        }
+        acquire(tid, pid, mode);
+    }
+
+    /**
+     * Locks a tuple on behalf of a transaction: its table and its page in
+     * the intention mode first, then the tuple, unless the lock on the
+     * table or the page covers it.
+     */
+    void acquireRecord(TransactionId tid, RecordId rid, Mode mode)
+        throws TransactionAbortedException, InterruptedException {
+        PageId pid = rid.getPageId();
+        if (acquire(tid, new TableKey(pid.getTableId()), mode.intention()).covers(mode))
+            return;
+        if (acquire(tid, pid, mode.intention()).covers(mode))
+            return;
+        acquire(tid, rid, mode);
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page, or a lock
+     *         on its table that covers reading it
+     */
+    boolean holdsPage(TransactionId tid, PageId pid) {
+        if (holdsLock(tid, pid))
+            return true;
+        Mode m = modeOf(tid, new TableKey(pid.getTableId()));
+        return m != null && m.covers(Mode.SHARED);
+    }
+
+    /** @return the mode the transaction holds a resource in, or null */
+    private Mode modeOf(TransactionId tid, Object key) {
+        Stripe stripe = stripeOf(key);
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(key);
+            Request mine = q == null ? null : grantedTo(q, tid);
+            return mine == null ? null : mine.mode;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Releases the lock of a transaction on a resource, if it holds one. */
+    void release(TransactionId tid, Object key) {
+        Stripe stripe = stripeOf(key);
+        stripe.latch.lock();
+        try {
+            LockQueue q = stripe.queues.get(key);
+            if (q != null) {
+                for (Iterator<Request> it = q.granted.iterator(); it.hasNext(); )
+                    if (it.next().tid.equals(tid))
+                        it.remove();
+                grantWaiters(q);
+                if (q.granted.isEmpty() && q.waiting.isEmpty())
+                    stripe.queues.remove(key);
+            }
+            Txn t = txns.get(tid);
+            if (t != null)
+                t.unhold(key);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Releases every lock of a transaction. */
+    void releaseAll(TransactionId tid) {
+        Txn t = txns.remove(tid);
+        if (t == null)
+            return;
+        for (Object key : t.held)
+            release(tid, key);
+    }
+
+    /** @return true if the transaction holds a lock on the resource */
+    boolean holdsLock(TransactionId tid, Object key) {
+        Txn t = txns.get(tid);
+        return t != null && t.held.contains(key);
+    }
+}
@@ -0,0 +1,269 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogBuffer holds the records appended to a {@link LogFile} in memory
+ * until a dedicated writer thread writes them to its {@link LogSegments}.
+ * <p>
+ * Appending takes no lock: a record reserves its bytes by advancing the
+ * end of the buffer with a compare-and-set, which gives it its log
+ * sequence number (LSN), is copied into a ring of direct ByteBuffers,
+ * and is then published, in LSN order, by advancing the filled mark. The
+ * writer thread drains published records with large positional writes,
+ * at most WRITER_DELAY_MS after they were appended, or sooner when the
+ * ring fills up. It forces the log when a caller waits for a record to
+ * be durable (see {@link #waitForced}); committing callers wait as a
+ * group, which is forced together once it fills or its delay runs out
+ * (see {@link LogFile#setGroupCommitDelay}). The writer thread exits
+ * when it has been idle for a while, and is started again on demand.
+ * <p>
+ * The size of the ring can be set with the system property
+ * simpledb.LogBufferSize, in bytes.
+ */
+class LogBuffer {
+
+    private static final int SEGMENT_SIZE = 128 * 1024;
+    private static final int DEFAULT_SIZE = 1024 * 1024;
+
+    private static final long WRITER_DELAY_MS = 10;
+    private static final long WRITER_IDLE_MS = 1000;
+
+    private final ByteBuffer[] ring;
+    private final long capacity;
+
+    private final AtomicLong reserved; // end of the last reserved record
+    private final AtomicLong filled;   // every record below is in the ring
+    private volatile long written;     // every record below is in the segments
+    private final LogSegments segments;
+    private volatile Thread writer;    // null while idle
+
+    private final Object lock = new Object();
+    private long forced;       // every record below is on disk //protected by lock
+    private long requested;    // highest LSN a commit waits for //protected by lock
+    private long urgent;       // highest LSN anyone else waits for //protected by lock
+    private int committers;    // commits waiting //protected by lock
+    private int totalForces;   // for tests //protected by lock
+    private IOException failure; // of the writer, passed to waiters //protected by lock
+
+    /**
+     * Creates a buffer that appends to the specified segments.
+     *
+     * @param segments the segments of the log
+     * @param end the LSN after the last record
+     */
+    LogBuffer(LogSegments segments, long end) {
+        // the ring holds at least a few records of two page images
+        long size = Math.max(Long.getLong("simpledb.LogBufferSize", DEFAULT_SIZE),
+                             8L * BufferPool.getPageSize());
+        int slots = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.ring = new ByteBuffer[slots];
+        for (int i = 0; i < slots; ++i)
+            ring[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        this.capacity = (long) slots * SEGMENT_SIZE;
+        this.segments = segments;
+        this.reserved = new AtomicLong(end);
+        this.filled = new AtomicLong(end);
+        this.written = end;
+        this.forced = end;
+    }
+
+    /**
+     * Appends a record. The last 8 bytes of the record are overwritten with
+     * the LSN the record starts at.
+     *
+     * @return the LSN after the record, to wait for with {@link #waitForced}
+     */
+    long append(byte[] record) throws IOException {
+        int len = record.length;
+        if (len > capacity)
+            throw new IOException("log record of " + len + " bytes does not fit in the log buffer");
+        long start;
+        while (true) {
+            long end = reserved.get();
+            if (end + len - written > capacity) {
+                awaitRoom();
+            } else if (reserved.compareAndSet(end, end + len)) {
+                start = end;
+                break;
+            }
+        }
+        ByteBuffer.wrap(record).putLong(len - LogFile.LONG_SIZE, start);
+        for (int done = 0; done < len; ) {
+            ByteBuffer dst = segment(start + done);
+            int n = Math.min(dst.remaining(), len - done);
+            dst.put(record, done, n);
+            done += n;
+        }
+
+        // publish after the records before this one
+        while (filled.get() != start)
+            Thread.yield();
+        filled.set(start + len);
+
+        if (writer == null || start + len - written > capacity / 2) {
+            synchronized (lock) {
+                startWriter();
+                lock.notifyAll();
+            }
+        }
+        return start + len;
+    }
+
+    /** @return the LSN after the last record published */
+    long end() {
+        return filled.get();
+    }
+
+    /**
+     * Waits until every record before the specified LSN is on disk.
+     *
+     * @param commit true if a commit waits, which is forced with the rest
+     *        of its group; false to force the log as soon as possible
+     */
+    void waitForced(long lsn, boolean commit) throws IOException {
+        synchronized (lock) {
+            if (forced >= lsn)
+                return;
+            if (commit) {
+                ++committers;
+                requested = Math.max(requested, lsn);
+            } else {
+                urgent = Math.max(urgent, lsn);
+            }
+            try {
+                startWriter();
+                lock.notifyAll();
+                while (forced < lsn) {
+                    if (failure != null)
+                        throw new IOException("log writer failed", failure);
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log");
+            } finally {
+                if (commit)
+                    --committers;
+            }
+        }
+    }
+
+    /** @return the number of times the log was forced */
+    int getTotalForces() {
+        synchronized (lock) {
+            return totalForces;
+        }
+    }
+
+    /** @return the ring's bytes at the specified LSN, up to its segment's end */
+    private ByteBuffer segment(long lsn) {
+        ByteBuffer b = ring[(int) ((lsn / SEGMENT_SIZE) % ring.length)].duplicate();
+        b.position((int) (lsn % SEGMENT_SIZE));
+        return b;
+    }
+
+    /** Waits for the writer to make room in the ring. */
+    private void awaitRoom() throws IOException {
+        synchronized (lock) {
+            startWriter();
+            lock.notifyAll();
+            try {
+                lock.wait(WRITER_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log");
+            }
+            if (failure != null)
+                throw new IOException("log writer failed", failure);
+        }
+    }
+
+    /** Starts the writer thread, unless it runs already. Holds lock. */
+    private void startWriter() {
+        if (writer != null)
+            return;
+        writer = new Thread("simpledb-log-writer") {
+            public void run() {
+                runWriter();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void runWriter() {
+        long groupDeadline = 0; // while commits wait, in System.nanoTime()
+        long idleSince = System.currentTimeMillis();
+        try {
+            while (true) {
+                boolean force;
+                long from; // forced already
+                synchronized (lock) {
+                    from = forced;
+                    long now = System.nanoTime();
+                    boolean commits = requested > forced;
+                    if (commits && groupDeadline == 0)
+                        groupDeadline = now + TimeUnit.MICROSECONDS.toNanos(LogFile.getGroupCommitDelay());
+                    force = urgent > forced || (commits
+                            && (committers >= LogFile.getGroupCommitSize() || now - groupDeadline >= 0));
+                    if (!force && filled.get() == written) {
+                        if (!commits && System.currentTimeMillis() - idleSince >= WRITER_IDLE_MS) {
+                            writer = null;
+                            return;
+                        }
+                        if (commits)
+                            TimeUnit.NANOSECONDS.timedWait(lock, groupDeadline - now);
+                        else
+                            lock.wait(WRITER_DELAY_MS);
+                        continue;
+                    }
+                }
+                long end = filled.get();
+                write(end);
+                if (force)
+                    segments.force(from, end);
+                synchronized (lock) {
+                    if (force) {
+                        forced = Math.max(forced, end);
+                        ++totalForces;
+                        groupDeadline = 0;
+                    }
+                    lock.notifyAll();
+                }
+                idleSince = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                failure = e;
+                writer = null;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (lock) {
+                writer = null;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Writes the published records up to the specified LSN to the segments. */
+    private void write(long end) throws IOException {
+        long lsn = written;
+        while (lsn < end) {
+            ByteBuffer src = segment(lsn);
+            src.limit((int) Math.min(SEGMENT_SIZE, src.position() + (end - lsn)));
+            int n = src.remaining();
+            long at = lsn;
+            while (src.hasRemaining())
+                at += segments.write(src, at);
+            lsn += n;
+            // frees the space for appenders
+            written = lsn;
+        }
+    }
+}
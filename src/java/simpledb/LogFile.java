@@ -2,7 +2,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.lang.reflect.*;
 
 /**
@@ -24,14 +32,54 @@ must not be declared synchronized and must begin with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
+    Database.getBufferPool().rwl.writeLock().lock();
+    try {
        synchronized (this) {
 
        ..
 
        }
+    } finally {
+       Database.getBufferPool().rwl.writeLock().unlock();
     }
 </pre>
+
+BufferPool holds the read lock of rwl while it writes a page and its log
+record, so no page is written while such an operation runs.  Checkpoints
+take neither, since they write no pages (see logCheckpoint()): they
+append their record under the log's monitor, and only briefly hold the
+write lock of a lock of their own, which orders them against the UPDATE
+and DELTA records being appended (see logWrite()).
+
+<p> <u> Log buffer: </u>
+<p>
+
+Records are not written to the file by the caller, but appended to a
+{@link LogBuffer} without taking the log's monitor; a writer thread
+writes them out.  UPDATE and COMMIT records are appended this way by
+concurrent transactions.  A caller that needs its records on disk, like a
+commit or the write of a page, waits for the buffer's writer to force
+them.  Operations that read the log back wait for the records they need
+to be written first.
+
+<p> <u> Group commit: </u>
+<p>
+
+Commits waiting for their records to reach the disk are forced as a
+group: the writer waits up to the group commit delay, or until the group
+commit size of commits is waiting, then forces the log once for all of
+them.  Commits that arrive while the log is forced join the next group.
+See {@link #setGroupCommitDelay} and {@link #setGroupCommitSize}.
+
+<p> <u> Segments: </u>
+<p>
+
+The records are stored in segment files of a fixed size (see
+{@link LogSegments} and {@link #setSegmentSize}), and are addressed by
+their log sequence number (LSN), their position in the log since it was
+started.  LSNs stay the same as long as the log exists, so truncating
+the log moves no records: logTruncate() only drops the segments before
+the first record the last checkpoint needs, in the background.
 */
 
 /**
@@ -39,33 +87,60 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds a long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints, and an integer,
+the size of the segments of the log
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The segments hold the log records, one after another; a record may
+continue from one segment into the next.  Log records are variable
+length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN where the record
+began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
+<li>UPDATE and DELTA records follow the transaction id with a long
+integer prevLSN: the LSN of the transaction's previous UPDATE or DELTA
+record, or -1 for its first.  They chain the updates of a transaction
+from its last back to its first, which is how rollback and recovery
+find them (see rollback()).
+
+<li>An UPDATE or DELTA record whose type has the COMPRESSED bit set
+holds the rest of its data, after the prevLSN, deflated: as the integer
+length of the data, the integer length of the deflated bytes, and the
+deflated bytes.  Records are compressed when compression is on (see
+setCompression()) and it makes them smaller, so a log may mix both.
+
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An update logs an UPDATE
+record the first time it writes a page after a checkpoint.
+
+<li>DELTA RECORDS log any further update of the page until the next
+checkpoint.  They consist of the page id (see LogFile.writePageId())
+and the byte ranges of the page that changed, with their before and
+after images (see PageDelta).  They log an update to one or a few
+tuples in a fraction of the space of the two page images.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and the long integer LSN of its first
+record for each active transaction.  The active transactions are followed by
+the pages that were logged but not written since, as an integer count
+of pages and, for each page, its page id and the long integer LSN of
+the first record since it was last written (its recLSN).  The record
+ends in the long integer LSN of the end of the log when the checkpoint
+began.  Checkpoints are fuzzy: they write no pages, so recovery redoes
+from the least of the recLSNs and that LSN.
 
 </ul>
 
@@ -75,23 +150,85 @@ public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
+    private LogSegments segments; // null while recovery is undecided
+    private LogBuffer buffer; // null while recovery is undecided
+    private volatile LogRecovery recovery; // null unless recover() ran
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int COMPRESSED = 0x100; // flag of UPDATE and DELTA types
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = LONG_SIZE + INT_SIZE;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    private static volatile long groupCommitDelay =
+        Long.getLong("simpledb.GroupCommitDelay", 0); // microseconds
+    private static volatile int groupCommitSize =
+        Integer.getInteger("simpledb.GroupCommitSize", 32);
+    private static volatile int segmentSize =
+        Integer.getInteger("simpledb.LogSegmentSize", 16 * 1024 * 1024);
+    private static volatile int undoChainLimit =
+        Integer.getInteger("simpledb.UndoChainLimit", 4 * 1024 * 1024);
+    private static volatile boolean compression = Boolean.getBoolean("simpledb.LogCompression");
+
+    // records smaller than this are not worth deflating
+    private static final int MIN_COMPRESS_SIZE = 256;
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+    // the updates of the active transactions, to roll them back
+    private final Map<Long,UndoChain> undoChains = new ConcurrentHashMap<Long,UndoChain>();
+
+    /**
+     * The updates of an active transaction: the LSN of its last UPDATE or
+     * DELTA record, the head of its chain in the log, and the changes the
+     * records hold, in log order, for as long as they fit in the undo
+     * chain limit.
+     */
+    private static class UndoChain {
+        long last = NO_PREV_LSN;
+        Map<PageId, List<PageDelta>> changes = new LinkedHashMap<PageId, List<PageDelta>>();
+        long size;
+
+        /** Notes a record of the transaction. */
+        void add(long lsn, PageId pid, PageDelta delta) {
+            last = lsn;
+            if (changes == null)
+                return;
+            size += delta.size();
+            if (size > undoChainLimit)
+                changes = null; // rollback reads the log instead
+            else
+                changesOf(changes, pid).add(delta);
+        }
+    }
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // pages with an UPDATE record since the last checkpoint. logWrite
+    // looks a page up and appends its record under the read lock of
+    // imagedLock; a checkpoint clears it and notes where its log begins
+    // under the write lock, so every record after that point was made
+    // after the clear
+    private final Set<PageId> imaged =
+        Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+    private final ReadWriteLock imagedLock = new ReentrantReadWriteLock();
+    // the dirty page table: pages logged but not written since, and the
+    // LSN to redo them from
+    private final Map<PageId,Long> dirtyPages = new ConcurrentHashMap<PageId,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -124,19 +261,216 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    segments = new LogSegments(logFile, segmentSize);
+                    segments.clear();
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    raf.writeInt(segmentSize);
+                    startBuffer(0);
+                }
+            }
+        }
+    }
+
+    // appends go to the segments from the specified LSN on. Holds this.
+    private void startBuffer(long end) {
+        buffer = new LogBuffer(segments, end);
+        recoveryUndecided = false;
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    /** @return the LSN after the last record appended */
+    long end() {
+        LogBuffer b = buffer;
+        return b == null ? 0 : b.end();
+    }
+
+    /** @return the segments of the log; null before the first append or recovery */
+    LogSegments getSegments() {
+        return segments;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    int getTotalForces() {
+        LogBuffer b = buffer;
+        return b == null ? 0 : b.getTotalForces();
+    }
+
+    /** @return a record of the specified type without further data */
+    private static byte[] record(int type, TransactionId tid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(INT_SIZE + 2 * LONG_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(type);
+        out.writeLong(tid.getId());
+        out.writeLong(0); // start LSN, filled in by the buffer
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sets how long, in microseconds, the leader of a group commit waits
+     * for more commits to join before it forces the log; 0 forces at once,
+     * and only commits that arrive during a force share the next one.
+     * Defaults to the system property simpledb.GroupCommitDelay, or 0.
+     */
+    public static void setGroupCommitDelay(long micros) {
+        groupCommitDelay = micros;
+    }
+
+    /** @return the longest a group commit waits to fill, in microseconds */
+    public static long getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Sets the number of waiting commits at which the leader of a group
+     * commit stops waiting and forces the log. Defaults to the system
+     * property simpledb.GroupCommitSize, or 32.
+     */
+    public static void setGroupCommitSize(int commits) {
+        groupCommitSize = commits;
+    }
+
+    /** @return the number of commits that fill a group */
+    public static int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of the segments of logs started from now on;
+     * a log keeps the size it was started with. Defaults to the system
+     * property simpledb.LogSegmentSize, or 16 MB.
+     */
+    public static void setSegmentSize(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        segmentSize = bytes;
+    }
+
+    /** @return the size of the segments of new logs, in bytes */
+    public static int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets how many bytes of changes a transaction keeps in memory to roll
+     * back from; a transaction that changes more is rolled back from the
+     * log. Defaults to the system property simpledb.UndoChainLimit, or 4 MB.
+     */
+    public static void setUndoChainLimit(int bytes) {
+        undoChainLimit = bytes;
+    }
+
+    /** @return the most bytes of changes kept in memory per transaction */
+    public static int getUndoChainLimit() {
+        return undoChainLimit;
+    }
+
+    /**
+     * Sets whether UPDATE and DELTA records are compressed, which saves
+     * log bandwidth at the cost of CPU; page images, with their empty
+     * slots and padded strings, deflate well. Logs written either way can
+     * be recovered. Defaults to the system property simpledb.LogCompression,
+     * or false.
+     */
+    public static void setCompression(boolean on) {
+        compression = on;
+    }
+
+    /** @return true if UPDATE and DELTA records are compressed */
+    public static boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @return an UPDATE or DELTA record of the specified data, compressed
+     *         if that is on and makes it smaller
+     */
+    private static byte[] updateRecord(int type, TransactionId tid, byte[] data) throws IOException {
+        byte[] deflated = compression && data.length >= MIN_COMPRESS_SIZE ? deflate(data) : null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + INT_SIZE + 3 * LONG_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(deflated == null ? type : type | COMPRESSED);
+        out.writeLong(tid.getId());
+        out.writeLong(NO_PREV_LSN); // filled in by logWrite
+        if (deflated == null) {
+            out.write(data);
+        } else {
+            out.writeInt(data.length);
+            out.writeInt(deflated.length);
+            out.write(deflated);
         }
+        out.writeLong(0); // start LSN, filled in by the buffer
+        return bytes.toByteArray();
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** @return the data deflated, or null if that does not make it smaller */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[data.length];
+        int n = 0;
+        while (!deflater.finished() && n < buf.length)
+            n += deflater.deflate(buf, n, buf.length - n);
+        return deflater.finished() && n < data.length - 2 * INT_SIZE ? Arrays.copyOf(buf, n) : null;
+    }
+
+    /** @return true if the type is that of an UPDATE or DELTA record */
+    static boolean isUpdate(int type) {
+        int t = type & ~COMPRESSED;
+        return t == UPDATE_RECORD || t == DELTA_RECORD;
+    }
+
+    /**
+     * Reads the data of an UPDATE or DELTA record after its prevLSN.
+     *
+     * @param type the type the record was read with
+     * @param in the log, at the data
+     * @return the data, inflated if the record is compressed
+     */
+    DataInput recordData(int type, DataInput in) throws IOException {
+        if ((type & COMPRESSED) == 0)
+            return in;
+        int length = in.readInt();
+        byte[] deflated = new byte[in.readInt()];
+        in.readFully(deflated);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] data = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int m = inflater.inflate(data, n, length - n);
+                if (m == 0 && inflater.needsInput())
+                    break;
+                n += m;
+            }
+            if (n != length)
+                throw new IOException("compressed record of " + n + " bytes, not " + length);
+            return new DataInputStream(new ByteArrayInputStream(data));
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return true if the specified transaction began in this log and has
+     *         not committed or aborted yet, so that its updates can be
+     *         rolled back from the log
+     */
+    public boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -147,7 +481,8 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        Database.getBufferPool().rwl.writeLock().lock();
+        try {
 
             synchronized(this) {
                 preAppend();
@@ -158,69 +493,148 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                long end = buffer.append(record(ABORT_RECORD, tid));
+                buffer.waitForced(end, false);
                 tidToFirstLogRecord.remove(tid.getId());
+                undoChains.remove(tid.getId());
             }
+        } finally {
+            Database.getBufferPool().rwl.writeLock().unlock();
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk, together with the records of other
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        waitForCommit(appendCommit(tid));
+    }
+
+    /** Appends a commit record for the specified tid to the log buffer,
+        without waiting for it to reach the disk; see {@link #waitForCommit}.
+
+        @return the end of the commit record in the log
+    */
+    long appendCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        long end = buffer.append(record(COMMIT_RECORD, tid));
         tidToFirstLogRecord.remove(tid.getId());
+        undoChains.remove(tid.getId());
+        return end;
+    }
+
+    /** Waits for the log to be forced up to the end of a commit record
+        appended by {@link #appendCommit}, forcing it with the records of
+        other transactions committing at the same time. */
+    void waitForCommit(long end) throws IOException {
+        buffer.waitForced(end, true);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page
+        was logged since the last checkpoint, only the ranges that changed
+        are written, in a DELTA record; the before image must then be the
+        page as of its last record, its after image as of the last write.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           prevLSN
            before page data (see writePageData)
            after page data
-           start offset
+           start LSN
+
+           and a delta record of
+
+           record type
+           transaction id
+           prevLSN
+           page id (see writePageId)
+           changed ranges (see PageDelta)
+           start LSN
+
+           either of which may be compressed (see updateRecord)
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        imagedLock.readLock().lock();
+        try {
+            appendWrite(tid, before, after);
+        } finally {
+            imagedLock.readLock().unlock();
+        }
+    }
+
+    private void appendWrite(TransactionId tid, Page before, Page after)
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PageId pid = after.getId();
+        byte[] afterData = after.getPageData();
+        PageDelta delta = null;
+        if (imaged.contains(pid)) {
+            delta = PageDelta.diff(before.getPageData(), afterData);
+            // two images are smaller when most of the page changed
+            if (delta.size() >= 2 * afterData.length)
+                delta = null;
+        }
+        int type;
+        if (delta != null) {
+            type = DELTA_RECORD;
+            writePageId(out, pid);
+            delta.write(out);
+        } else {
+            type = UPDATE_RECORD;
+            writePageData(out,before);
+            writePageData(out,after);
+            imaged.add(pid);
+        }
+        byte[] record = updateRecord(type, tid, bytes.toByteArray());
+        // before the append, so that a checkpoint that misses the page
+        // began before its record
+        dirtyPages.putIfAbsent(pid, buffer.end());
+        long end;
+        UndoChain chain = undoChains.get(tid.getId());
+        if (chain == null) {
+            end = buffer.append(record);
+        } else {
+            // the page cleaner may log a page of the transaction too
+            synchronized (chain) {
+                ByteBuffer.wrap(record).putLong(INT_SIZE + LONG_SIZE, chain.last);
+                end = buffer.append(record);
+                if (delta == null)
+                    delta = PageDelta.image(before.getPageData(), afterData);
+                chain.add(end - record.length, pid, delta);
+            }
+        }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE LSN = " + end);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /**
+     * Notes that a page was written, with every update logged for it, so
+     * that checkpoints no longer redo it.
+     */
+    void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
         // page class name
@@ -231,51 +645,91 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, pid);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
+    Page readPageData(DataInput raf) throws IOException {
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        return newPage(pageClassName, pid, pageData);
+    }
+
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+
+        //page id is:
+        // id class name
+        // id class bytes
+        // id class data
 
+        raf.writeUTF(pid.getClass().getName());
+        raf.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            raf.writeInt(pageInfo[i]);
+        }
+    }
+
+    PageId readPageId(DataInput raf) throws IOException {
+        String idClassName = raf.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** @return a page of the specified class holding the specified data */
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        Page newPage = null;
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            // pages may declare other constructors besides Page(PageId, byte[])
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (pageConst == null || (params.length == 2 && params[1] == byte[].class))
+                    pageConst = c;
+            }
 
-            Object[] pageArgs = new Object[2];
+            Object[] pageArgs = new Object[pageConst.getParameterTypes().length];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
+            if (pageArgs.length == 3) {
+                // BTree pages also take the key field of their file
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs[2] = f.keyField();
+            }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -307,163 +761,134 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        byte[] record = record(BEGIN_RECORD, tid);
+        long end = buffer.append(record);
+        // holding this keeps a checkpoint from missing the transaction
+        // though its record is before the checkpoint
+        long lsn = end - record.length;
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+        undoChains.put(tid.getId(), new UndoChain());
+
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it writes no pages and does not hold up
+        transactions or the page cleaner, but records the dirty page
+        table, from which recovery finds where to redo from. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-//        synchronized (Database.getBufferPool()) {
-
-            Database.getBufferPool().rwl.writeLock().lock();
-
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpLsn;
+            long begin;
+            Map<Long,Long> active;
+            Map<PageId,Long> dirty;
+            imagedLock.writeLock().lock();
+            try {
+                // pages that enter the dirty page table after the snapshot
+                // below are logged after this
+                begin = buffer.end();
+                // commits remove transactions without holding this
+                active = new HashMap<Long,Long>(tidToFirstLogRecord);
+                dirty = new HashMap<PageId,Long>(dirtyPages);
+                // the first update of a page after the checkpoint logs
+                // both of its images again
+                imaged.clear();
+            } finally {
+                imagedLock.writeLock().unlock();
             }
-
-            Database.getBufferPool().rwl.writeLock().unlock();
-
-//        }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(active.size());
+            for (Map.Entry<Long,Long> e : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            //write the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeLong(begin);
+            out.writeLong(0); // start LSN, filled in by the buffer
+            byte[] record = bytes.toByteArray();
+            long end = buffer.append(record);
+            startCpLsn = end - record.length;
+
+            //once the CP is on disk, make sure the CP location in the log
+            // file is updated; it must be on disk before the segments
+            // before the CP are dropped
+            buffer.waitForced(end, false);
+            raf.seek(0);
+            raf.writeLong(startCpLsn);
+            raf.getChannel().force(true);
+            //Debug.log("CP LSN = " + startCpLsn);
+        }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  The segments before the first record the last
+        checkpoint needs are dropped in the background, so this reads
+        only the checkpoint and does not hold up appends. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
+        DataInputStream in = new DataInputStream(segments.open(cpLoc));
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        int numOutstanding = in.readInt();
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // and the records to redo from
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            minLogRecord = Math.min(minLogRecord, in.readLong());
+        }
+        minLogRecord = Math.min(minLogRecord, in.readLong());
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop everything before minLogRecord
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + ", END " + buffer.end());
+        segments.recycle(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  The changes of the transaction are
+        kept in memory while it runs, up to the undo chain limit (see
+        setUndoChainLimit()); past it, they are read from the log by
+        following the transaction's prevLSN chain, so rollback never scans
+        the records of other transactions.
 
         @param tid The transaction to rollback
     */
@@ -472,25 +897,164 @@ public class LogFile {
 //        synchronized (Database.getBufferPool()) {
 
         Database.getBufferPool().rwl.writeLock().lock();
+        try {
 
         synchronized(this) {
                 preAppend();
-                // some code goes here
+                UndoChain chain = undoChains.get(tid.getId());
+                if (chain == null)
+                    return; // nothing logged, so nothing written
+
+                Map<PageId, List<PageDelta>> changes;
+                long last;
+                synchronized (chain) {
+                    changes = chain.changes;
+                    last = chain.last;
+                }
+                if (changes == null)
+                    changes = readChain(last);
+                else
+                    changes = copy(changes); // undo() extends the chain
+                undo(tid, changes);
         }
 
-        Database.getBufferPool().rwl.writeLock().unlock();
+        } finally {
+            Database.getBufferPool().rwl.writeLock().unlock();
+        }
 
 //        }
     }
 
+    /**
+     * Reads the updates of a transaction from the log, following the
+     * prevLSN chain back from its last record.
+     *
+     * @param last the LSN of the last UPDATE or DELTA record of the
+     *        transaction, or NO_PREV_LSN
+     * @return the changes the records hold, by page, in log order
+     */
+    Map<PageId, List<PageDelta>> readChain(long last) throws IOException {
+        Map<PageId, List<PageDelta>> changes = new LinkedHashMap<PageId, List<PageDelta>>();
+        if (last == NO_PREV_LSN)
+            return changes;
+        buffer.waitForced(buffer.end(), false);
+        LogSegments.Input log = segments.open(last);
+        DataInputStream in = new DataInputStream(log);
+        for (long lsn = last; lsn != NO_PREV_LSN; ) {
+            log.seek(lsn);
+            int type = in.readInt();
+            in.readLong();
+            lsn = in.readLong();
+            DataInput data = recordData(type, in);
+            switch (type & ~COMPRESSED) {
+            case UPDATE_RECORD:
+                Page image = readPageData(data);
+                Page after = readPageData(data);
+                changesOf(changes, image.getId()).add(
+                    PageDelta.image(image.getPageData(), after.getPageData()));
+                break;
+            case DELTA_RECORD:
+                PageId pid = readPageId(data);
+                changesOf(changes, pid).add(PageDelta.read(data));
+                break;
+            default:
+                throw new IOException("record of type " + type + " in the chain of a transaction");
+            }
+        }
+        for (List<PageDelta> deltas : changes.values())
+            Collections.reverse(deltas);
+        return changes;
+    }
+
+    /**
+     * Rolls back a transaction that had not completed before a crash,
+     * from its last update. The pages undone are logged on its chain.
+     */
+    void undoFrom(TransactionId tid, long last) throws IOException {
+        UndoChain chain = new UndoChain();
+        chain.last = last;
+        chain.changes = null;
+        undoChains.put(tid.getId(), chain);
+        try {
+            undo(tid, readChain(last));
+        } finally {
+            undoChains.remove(tid.getId());
+        }
+    }
+
+    private static Map<PageId, List<PageDelta>> copy(Map<PageId, List<PageDelta>> changes) {
+        Map<PageId, List<PageDelta>> copy = new LinkedHashMap<PageId, List<PageDelta>>();
+        for (Map.Entry<PageId, List<PageDelta>> e : changes.entrySet())
+            copy.put(e.getKey(), new ArrayList<PageDelta>(e.getValue()));
+        return copy;
+    }
+
+    /**
+     * Undoes the specified records of a transaction, in reverse, on the
+     * pages they changed as they are on disk, and writes the pages. Every
+     * page a transaction logged was written after its record, so this
+     * gives the pages as they were before the transaction.  The pages
+     * written are logged as updates of the transaction first, so that
+     * redo repeats the rollback; undoing them again with the rest, should
+     * the rollback not complete, leaves the pages the same.
+     */
+    void undo(TransactionId tid, Map<PageId, List<PageDelta>> changes) throws IOException {
+        List<Page> undone = new ArrayList<Page>();
+        for (Map.Entry<PageId, List<PageDelta>> e : changes.entrySet()) {
+            PageId pid = e.getKey();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page page = file.readPage(pid);
+            byte[] data = page.getPageData();
+            List<PageDelta> deltas = e.getValue();
+            for (ListIterator<PageDelta> it = deltas.listIterator(deltas.size()); it.hasPrevious(); )
+                it.previous().undo(data);
+            Page image = newPage(page.getClass().getName(), pid, data);
+            logWrite(tid, page, image);
+            undone.add(image);
+        }
+        force();
+
+        BufferPool bufferpool = Database.getBufferPool();
+        for (Page image : undone) {
+            PageId pid = image.getId();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            pageWritten(pid);
+            bufferpool.discardPage(pid);
+        }
+    }
+
+    private static List<PageDelta> changesOf(Map<PageId, List<PageDelta>> changes, PageId pid) {
+        List<PageDelta> deltas = changes.get(pid);
+        if (deltas == null) {
+            deltas = new ArrayList<PageDelta>();
+            changes.put(pid, deltas);
+        }
+        return deltas;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoints write no pages, so write them first to leave
+            // nothing to redo
+            Database.getBufferPool().flushAllPages();
+            // the heap files now match their free space maps, which can be
+            // trusted on the next start
+            Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+            while (tables.hasNext()) {
+                DbFile f = Database.getCatalog().getDatabaseFile(tables.next());
+                if (f instanceof HeapFile)
+                    ((HeapFile) f).getFreeSpaceMap().seal();
+            }
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                if (segments != null)
+                    segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -500,29 +1064,79 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Does nothing once records were appended to the log.
+
+        @see LogRecovery
     */
     public void recover() throws IOException {
 //        synchronized (Database.getBufferPool()) {
 
         Database.getBufferPool().rwl.writeLock().lock();
+        try {
 
-        synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+            synchronized (this) {
+                if (!recoveryUndecided)
+                    return;
+                long cpLoc = NO_CHECKPOINT_ID;
+                int size = segmentSize;
+                if (raf.length() >= HEADER_SIZE) {
+                    raf.seek(0);
+                    cpLoc = raf.readLong();
+                    size = raf.readInt();
+                    if (size <= 0)
+                        throw new IOException("bad segment size " + size + " in log file");
+                } else {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    raf.writeInt(size);
+                }
+                segments = new LogSegments(logFile, size);
+                LogRecovery r = new LogRecovery(this, segments, cpLoc);
+                recovery = r;
+                long end = r.analyze();
+                // drop a record the crash tore
+                segments.truncate(end);
+                TransactionId.skipPast(r.getMaxTid());
+                startBuffer(end);
+
+                r.redo();
+                for (TransactionId tid : r.undo()) {
+                    totalRecords.incrementAndGet();
+                    buffer.append(record(ABORT_RECORD, tid));
+                }
+                force();
+                r.finish();
             }
 
-        Database.getBufferPool().rwl.writeLock().unlock();
+        } finally {
+            Database.getBufferPool().rwl.writeLock().unlock();
+        }
 
 //         }
     }
 
+    /**
+     * @return how far along the last call to {@link #recover} is, from 0
+     *         to 1; 1 if it was not called
+     */
+    public double getRecoveryProgress() {
+        LogRecovery r = recovery;
+        return r == null ? 1 : r.getProgress();
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Waits until every record appended so far is on disk, forcing the log
+     * unless they are already.
+     */
+    public void force() throws IOException {
+        LogBuffer b = buffer;
+        if (b != null)
+            b.waitForced(b.end(), false);
     }
 
 }
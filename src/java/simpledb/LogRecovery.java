@@ -0,0 +1,294 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogRecovery restarts the database from its {@link LogFile} after a crash,
+ * in the three passes of ARIES:
+ * <ul>
+ * <li> Analysis reads the log from the first record the last checkpoint
+ * still needs. It finds the transactions that neither committed nor
+ * aborted (the losers), the updates that may not be on disk, and the end
+ * of the last whole record.
+ * <li> Redo repeats history: it installs every update logged since its page
+ * was last written, those of the losers included. Pages are redone
+ * independently of each other, each by a task of a pool of worker threads,
+ * in log order.
+ * <li> Undo rolls the losers back like {@link LogFile#rollback} does,
+ * following the prevLSN chain of each back from its last update, and
+ * logging the pages it writes, after which the log records an ABORT for
+ * each of them.
+ * </ul>
+ * Records set byte ranges of a page to the images they hold (see
+ * {@link PageDelta}), so redoing a record the page on disk holds already
+ * changes nothing. Redo therefore needs no LSN on the page: the dirty page
+ * table of the checkpoint tells it which records of a page to redo.
+ * <p>
+ * The number of redo threads can be set with the system property
+ * simpledb.RecoveryThreads; it defaults to the number of processors.
+ */
+class LogRecovery {
+
+    private static final int ANALYSIS = 0;
+    private static final int REDO = 1;
+    private static final int UNDO = 2;
+    private static final int DONE = 3;
+
+    private final LogFile log;
+    private final LogSegments segments;
+    private final long cpLoc; // LSN of the last checkpoint
+
+    // the records to redo, in log order, by page
+    private final Map<PageId, PageRedo> redo = new LinkedHashMap<PageId, PageRedo>();
+    // the LSN of the last update of each transaction that had not completed
+    private final Map<Long, Long> undo = new LinkedHashMap<Long, Long>();
+    private long maxTid = -1;
+
+    private volatile int phase = ANALYSIS;
+    private volatile long total;
+    private final AtomicLong done = new AtomicLong();
+
+    /** The records of a page to redo. */
+    private static class PageRedo {
+        String pageClassName; // from the last full image, if any
+        final List<PageDelta> deltas = new ArrayList<PageDelta>();
+    }
+
+    LogRecovery(LogFile log, LogSegments segments, long cpLoc) {
+        this.log = log;
+        this.segments = segments;
+        this.cpLoc = cpLoc;
+    }
+
+    /**
+     * @return how far along recovery is, from 0 to 1. Analysis, redo and
+     *         undo each count for a third, in proportion to the log bytes
+     *         read, the pages redone, and the transactions undone
+     */
+    double getProgress() {
+        int p = phase;
+        if (p == DONE)
+            return 1;
+        long t = total;
+        double fraction = t <= 0 ? 0 : Math.min(1, (double) done.get() / t);
+        return (p + fraction) / DONE;
+    }
+
+    /** @return the highest transaction id in the log, or -1 */
+    long getMaxTid() {
+        return maxTid;
+    }
+
+    /**
+     * Reads the log from the first record the last checkpoint needs.
+     *
+     * @return the LSN after the last whole record; a record after it was
+     *         torn by the crash
+     */
+    long analyze() throws IOException {
+        long begin = segments.first(); // records from here are redone
+        long start = begin;
+        Set<Long> active = new HashSet<Long>();
+        Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+        if (cpLoc != LogFile.NO_CHECKPOINT_ID) {
+            DataInputStream cp = new DataInputStream(segments.open(cpLoc));
+            if (cp.readInt() != LogFile.CHECKPOINT_RECORD)
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            cp.readLong();
+            start = cpLoc;
+            int numXactions = cp.readInt();
+            while (numXactions-- > 0) {
+                long tid = cp.readLong();
+                long first = cp.readLong();
+                active.add(tid);
+                start = Math.min(start, first);
+            }
+            int numDirty = cp.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = log.readPageId(cp);
+                long recLSN = cp.readLong();
+                dirty.put(pid, recLSN);
+                start = Math.min(start, recLSN);
+            }
+            begin = cp.readLong();
+            start = Math.min(start, begin);
+        }
+        for (Long tid : active)
+            undo.put(tid, LogFile.NO_PREV_LSN);
+
+        total = segments.end() - start;
+        LogSegments.Input in = segments.open(start);
+        DataInputStream data = new DataInputStream(in);
+        long end = start;
+        scan:
+        while (true) {
+            long lsn = in.position();
+            try {
+                int type = data.readInt();
+                long tid = data.readLong();
+                maxTid = Math.max(maxTid, tid);
+                DataInput payload = data;
+                if (LogFile.isUpdate(type)) {
+                    data.readLong(); // prevLSN
+                    payload = log.recordData(type, data);
+                    type &= ~LogFile.COMPRESSED;
+                }
+                switch (type) {
+                case LogFile.COMMIT_RECORD:
+                case LogFile.ABORT_RECORD:
+                    undo.remove(tid);
+                    break;
+                case LogFile.BEGIN_RECORD:
+                    undo.put(tid, LogFile.NO_PREV_LSN);
+                    break;
+                case LogFile.UPDATE_RECORD:
+                    Page before = log.readPageData(payload);
+                    Page after = log.readPageData(payload);
+                    PageDelta image = PageDelta.image(before.getPageData(), after.getPageData());
+                    if (lsn >= begin || isDirty(dirty, after.getId(), lsn))
+                        redoOf(after.getId()).pageClassName = after.getClass().getName();
+                    add(tid, lsn, after.getId(), image, begin, dirty);
+                    break;
+                case LogFile.DELTA_RECORD:
+                    PageId pid = log.readPageId(payload);
+                    add(tid, lsn, pid, PageDelta.read(payload), begin, dirty);
+                    break;
+                case LogFile.CHECKPOINT_RECORD:
+                    int numXactions = data.readInt();
+                    while (numXactions-- > 0) {
+                        data.readLong();
+                        data.readLong();
+                    }
+                    int numDirty = data.readInt();
+                    while (numDirty-- > 0) {
+                        log.readPageId(data);
+                        data.readLong();
+                    }
+                    data.readLong();
+                    break;
+                default:
+                    break scan;
+                }
+                if (data.readLong() != lsn)
+                    break;
+            } catch (EOFException e) {
+                break;
+            }
+            end = in.position();
+            done.set(end - start);
+        }
+
+        Debug.log("RECOVERY ANALYSIS: %d bytes, %d pages to redo, %d losers",
+                  end - start, redo.size(), undo.size());
+        return end;
+    }
+
+    private static boolean isDirty(Map<PageId, Long> dirty, PageId pid, long lsn) {
+        Long recLSN = dirty.get(pid);
+        return recLSN != null && lsn >= recLSN;
+    }
+
+    private PageRedo redoOf(PageId pid) {
+        PageRedo r = redo.get(pid);
+        if (r == null) {
+            r = new PageRedo();
+            redo.put(pid, r);
+        }
+        return r;
+    }
+
+    // a page missing from the checkpoint's dirty page table was written
+    // after its records before the checkpoint began
+    private void add(long tid, long lsn, PageId pid, PageDelta delta,
+                     long begin, Map<PageId, Long> dirty) {
+        if (lsn >= begin || isDirty(dirty, pid, lsn))
+            redoOf(pid).deltas.add(delta);
+        if (undo.containsKey(tid))
+            undo.put(tid, lsn);
+    }
+
+    /** Redoes the pages found by {@link #analyze}, in parallel. */
+    void redo() throws IOException {
+        done.set(0);
+        total = redo.size();
+        phase = REDO;
+        int threads = Integer.getInteger("simpledb.RecoveryThreads",
+                                         Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for (final Map.Entry<PageId, PageRedo> e : redo.entrySet()) {
+                tasks.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        redoPage(e.getKey(), e.getValue());
+                        done.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("redo failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during redo");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Debug.log("RECOVERY REDO: %d pages", redo.size());
+    }
+
+    private void redoPage(PageId pid, PageRedo r) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page page = file.readPage(pid);
+        byte[] data;
+        String pageClassName;
+        if (page != null) {
+            data = page.getPageData();
+            pageClassName = page.getClass().getName();
+        } else if (r.pageClassName != null) {
+            // past the end of the file; a full image sets every byte
+            data = new byte[BufferPool.getPageSize()];
+            pageClassName = r.pageClassName;
+        } else {
+            throw new IOException("no image of page " + pid.getPageNumber()
+                                  + " of table " + pid.getTableId() + " to redo");
+        }
+        for (PageDelta delta : r.deltas)
+            delta.redo(data);
+        file.writePage(log.newPage(pageClassName, pid, data));
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /**
+     * Rolls back the transactions that had not completed.
+     *
+     * @return the transactions rolled back, to log an ABORT record for
+     */
+    List<TransactionId> undo() throws IOException {
+        done.set(0);
+        total = undo.size();
+        phase = UNDO;
+        List<TransactionId> losers = new ArrayList<TransactionId>();
+        for (Map.Entry<Long, Long> e : undo.entrySet()) {
+            TransactionId tid = new TransactionId(e.getKey());
+            log.undoFrom(tid, e.getValue());
+            losers.add(tid);
+            done.incrementAndGet();
+        }
+        Debug.log("RECOVERY UNDO: %d transactions", losers.size());
+        return losers;
+    }
+
+    /** Marks recovery done. */
+    void finish() {
+        phase = DONE;
+    }
+}
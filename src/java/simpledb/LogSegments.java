@@ -0,0 +1,324 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in segment files of a
+ * fixed size. The log is a sequence of bytes addressed by log sequence
+ * numbers (LSNs) that only grow; the byte at an LSN is in the segment
+ * numbered LSN / size, at offset LSN % size, and records may continue from
+ * one segment into the next. Segments are named after the log file, with
+ * their number appended.
+ * <p>
+ * The log ends in the first segment that is not full. Once no record
+ * before an LSN is needed anymore, {@link #recycle} removes the segments
+ * before it in the background, so that truncating the log takes no time
+ * and holds up no appends. Removed segments are deleted, or moved to the
+ * directory named by the system property simpledb.LogArchiveDir if it is
+ * set.
+ */
+class LogSegments {
+
+    private static final long RECYCLER_IDLE_MS = 1000;
+
+    private final File dir;
+    private final String name;
+    private final int size;
+
+    private final ConcurrentHashMap<Long, FileChannel> channels =
+        new ConcurrentHashMap<Long, FileChannel>();
+    private volatile long first; // records before are not needed
+    private final ThreadPoolExecutor recycler;
+
+    /**
+     * Opens the segments of the specified log file.
+     *
+     * @param logFile the log file the segments are named after
+     * @param size the size of a segment, in bytes
+     */
+    LogSegments(File logFile, int size) {
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.name = logFile.getName();
+        this.size = size;
+        this.recycler = new ThreadPoolExecutor(1, 1, RECYCLER_IDLE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-log-recycler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        recycler.allowCoreThreadTimeOut(true);
+        List<Long> numbers = list();
+        this.first = numbers.isEmpty() ? 0 : numbers.get(0) * size;
+    }
+
+    /** @return the size of a segment, in bytes */
+    int getSize() {
+        return size;
+    }
+
+    /** @return the number of the segment holding the specified LSN */
+    long segmentOf(long lsn) {
+        return lsn / size;
+    }
+
+    /** @return the file of the specified segment */
+    File fileOf(long segment) {
+        return new File(dir, String.format("%s.%010d", name, segment));
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    List<Long> list() {
+        List<Long> numbers = new ArrayList<Long>();
+        String[] files = dir.list();
+        if (files == null)
+            return numbers;
+        String prefix = name + ".";
+        for (String f : files) {
+            if (!f.startsWith(prefix))
+                continue;
+            try {
+                numbers.add(Long.parseLong(f.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /** @return the LSN of the first record that is still needed */
+    long first() {
+        return first;
+    }
+
+    /** @return the LSN after the last byte on disk */
+    long end() {
+        long end = first;
+        for (long n : list()) {
+            if (n * size < first)
+                continue;
+            long length = fileOf(n).length();
+            end = n * size + length;
+            if (length < size)
+                break;
+        }
+        return end;
+    }
+
+    /** Removes every segment, to start an empty log at LSN 0. */
+    void clear() throws IOException {
+        closeChannels();
+        for (long n : list())
+            fileOf(n).delete();
+        first = 0;
+    }
+
+    /**
+     * Writes bytes to the segment holding an LSN, up to its end.
+     *
+     * @return the number of bytes written
+     */
+    int write(ByteBuffer src, long lsn) throws IOException {
+        long offset = lsn % size;
+        ByteBuffer part = src.duplicate();
+        part.limit((int) Math.min(src.limit(), src.position() + (size - offset)));
+        int n = channel(segmentOf(lsn), true).write(part, offset);
+        src.position(src.position() + n);
+        return n;
+    }
+
+    /**
+     * Reads bytes from the segment holding an LSN, up to its end.
+     *
+     * @return the number of bytes read, or -1 past the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        FileChannel channel = channel(segmentOf(lsn), false);
+        if (channel == null)
+            return -1;
+        long offset = lsn % size;
+        ByteBuffer part = dst.duplicate();
+        part.limit((int) Math.min(dst.limit(), dst.position() + (size - offset)));
+        int n = channel.read(part, offset);
+        if (n > 0)
+            dst.position(dst.position() + n);
+        return n;
+    }
+
+    /** Forces the segments holding the bytes from one LSN to another. */
+    void force(long from, long to) throws IOException {
+        if (to <= from)
+            return;
+        for (long n = segmentOf(from); n <= segmentOf(to - 1); ++n) {
+            FileChannel channel = channel(n, false);
+            if (channel != null)
+                channel.force(true);
+        }
+    }
+
+    /** @return a stream of the log from the specified LSN */
+    Input open(long lsn) {
+        return new Input(lsn);
+    }
+
+    /**
+     * Drops the bytes from the specified LSN on, which a crash left
+     * incomplete, so that appends continue from there.
+     */
+    void truncate(long end) throws IOException {
+        long last = segmentOf(end);
+        for (long n : list()) {
+            if (n > last) {
+                FileChannel channel = channels.remove(n);
+                if (channel != null)
+                    channel.close();
+                fileOf(n).delete();
+            }
+        }
+        FileChannel channel = channel(last, false);
+        if (channel != null)
+            channel.truncate(end % size);
+    }
+
+    /**
+     * Marks the records before the specified LSN as no longer needed, and
+     * removes the segments that only hold such records in the background.
+     */
+    void recycle(long lsn) {
+        if (lsn <= first)
+            return;
+        first = lsn;
+        final long before = segmentOf(lsn);
+        recycler.execute(new Runnable() {
+            public void run() {
+                for (long n : list()) {
+                    if (n >= before)
+                        break;
+                    remove(n);
+                }
+            }
+        });
+    }
+
+    private void remove(long segment) {
+        try {
+            FileChannel channel = channels.remove(segment);
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        File f = fileOf(segment);
+        String archive = System.getProperty("simpledb.LogArchiveDir");
+        if (archive == null || !f.renameTo(new File(archive, f.getName())))
+            f.delete();
+    }
+
+    /** Closes the segment files. */
+    void close() throws IOException {
+        recycler.shutdown();
+        closeChannels();
+    }
+
+    private void closeChannels() throws IOException {
+        for (Long n : new ArrayList<Long>(channels.keySet())) {
+            FileChannel channel = channels.remove(n);
+            if (channel != null)
+                channel.close();
+        }
+    }
+
+    /** @return the open segment, or null if it does not exist and create is false */
+    private FileChannel channel(long segment, boolean create) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel != null)
+            return channel;
+        File f = fileOf(segment);
+        if (!create && !f.exists())
+            return null;
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        FileChannel raced = channels.putIfAbsent(segment, channel);
+        if (raced != null) {
+            channel.close();
+            return raced;
+        }
+        return channel;
+    }
+
+    /**
+     * A stream of the log, from one segment into the next, that ends where
+     * the log does. It keeps track of the LSN it reads from.
+     */
+    class Input extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        private long position; // LSN of the next byte
+        private boolean eof;
+
+        private Input(long lsn) {
+            this.position = lsn;
+            buf.limit(0);
+        }
+
+        /** @return the LSN of the next byte read */
+        long position() {
+            return position;
+        }
+
+        /** Moves to the specified LSN, keeping the bytes read ahead if it is among them. */
+        void seek(long lsn) {
+            long from = position - buf.position(); // LSN of the first byte in buf
+            if (lsn >= from && lsn <= position + buf.remaining()) {
+                buf.position((int) (lsn - from));
+            } else {
+                buf.limit(0);
+                eof = false;
+            }
+            position = lsn;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof)
+                return false;
+            long lsn = position + buf.remaining();
+            buf.compact();
+            int n = LogSegments.this.read(buf, lsn);
+            buf.flip();
+            // reads stop at the end of a segment that is not full
+            eof = n <= 0;
+            return n > 0;
+        }
+
+        public int read() throws IOException {
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            ++position;
+            return buf.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PageChannel keeps one FileChannel open for the lifetime of a DbFile and
+ * serves page reads and writes with positional I/O, so fetching a page never
+ * pays for opening, seeking or closing the backing file.
+ * <p>
+ * Positional reads and writes leave the channel position untouched, so
+ * concurrent page fetches from the BufferPool do not need to serialize on
+ * this object.
+ * <p>
+ * A PageChannel can also hand out read-only views of the file backed by
+ * memory mappings (see {@link #map}). The file is mapped in fixed-size
+ * segments, and segments are remapped lazily once the file grows past the
+ * mapped length.
+ * <p>
+ * Pages read ahead of a scan (see {@link ReadAhead}) are staged here and
+ * handed to the next {@link #read} of the same offset. Staged pages never
+ * outlive a write to their offset, so a read served from the staging area
+ * always sees what is on disk.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    /** Number of pages covered by one mapped segment. */
+    private static final int MAP_SEGMENT_PAGES = 16384;
+
+    /** Maximum number of pages kept in the read-ahead staging area. */
+    private static final int MAX_STAGED = 64;
+
+    private final File file;
+    private volatile FileChannel channel;
+    private volatile MappedByteBuffer[] segments;
+    private long segmentSize;
+
+    private final LinkedHashMap<Long, byte[]> staged;
+    private long writes; // protected by staged
+    private long evictions; // staged pages dropped unread for room, protected by staged
+
+    /**
+     * Creates a channel manager for the specified file. The file is opened
+     * lazily on first access.
+     *
+     * @param f the file backing a DbFile
+     */
+    public PageChannel(File f) {
+        this.file = f;
+        this.channel = null;
+        this.segments = new MappedByteBuffer[0];
+        this.segmentSize = 0;
+        this.staged = new LinkedHashMap<Long, byte[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() <= MAX_STAGED)
+                    return false;
+                ++evictions;
+                return true;
+            }
+        };
+        this.writes = 0;
+        this.evictions = 0;
+    }
+
+    private FileChannel getChannel() throws IOException {
+        FileChannel fc = channel;
+        if (fc != null && fc.isOpen())
+            return fc;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            return channel;
+        }
+    }
+
+    /**
+     * Reads up to buf.length bytes starting at the specified file offset.
+     *
+     * @param buf the buffer to fill
+     * @param offset the offset in the file of the first byte to read
+     * @return the number of bytes read, or -1 if offset is past the end of
+     *         the file
+     */
+    public int read(byte[] buf, long offset) throws IOException {
+        synchronized (staged) {
+            // a read of part of a page, e.g. of its header, leaves it staged
+            byte[] page = staged.get(offset);
+            if (page != null && page.length == buf.length) {
+                staged.remove(offset);
+                System.arraycopy(page, 0, buf, 0, buf.length);
+                return buf.length;
+            }
+        }
+        try {
+            return readFully(getChannel(), buf, offset);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // another thread was interrupted while using the channel and
+            // closed it under us; reopen it and try once more
+            return readFully(getChannel(), buf, offset);
+        }
+    }
+
+    private int readFully(FileChannel fc, byte[] buf, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        int cnt = 0;
+        while (bb.hasRemaining()) {
+            int n = fc.read(bb, offset + cnt);
+            if (n < 0)
+                return cnt == 0 ? -1 : cnt;
+            cnt += n;
+        }
+        return cnt;
+    }
+
+    /**
+     * Writes all of data starting at the specified file offset, extending
+     * the file if needed.
+     *
+     * @param data the bytes to write
+     * @param offset the offset in the file of the first byte to write
+     */
+    public void write(byte[] data, long offset) throws IOException {
+        invalidate(offset);
+        try {
+            writeFully(getChannel(), data, offset);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            writeFully(getChannel(), data, offset);
+        } finally {
+            invalidate(offset);
+        }
+    }
+
+    private void invalidate(long offset) {
+        synchronized (staged) {
+            ++writes;
+            staged.remove(offset);
+        }
+    }
+
+    /**
+     * Reads len bytes at the specified offset into the staging area, where
+     * the next {@link #read} of that offset will find them. The page is not
+     * staged if a write to the file raced with the read.
+     *
+     * @param offset the offset in the file of the first byte to read
+     * @param len the number of bytes to read, typically the page size
+     * @return the bytes read, or null if the region lies past the end of
+     *         the file
+     */
+    public byte[] stage(long offset, int len) throws IOException {
+        long before;
+        synchronized (staged) {
+            byte[] page = staged.get(offset);
+            if (page != null)
+                return page;
+            before = writes;
+        }
+        byte[] page = new byte[len];
+        if (readFully(getChannel(), page, offset) != len)
+            return null;
+        synchronized (staged) {
+            if (writes == before)
+                staged.put(offset, page);
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of staged pages dropped so far to make room for
+     *         others, without having been read
+     */
+    public long getStagedEvictions() {
+        synchronized (staged) {
+            return evictions;
+        }
+    }
+
+    /**
+     * @return true if the page at the specified offset is waiting in the
+     *         staging area
+     */
+    public boolean isStaged(long offset) {
+        synchronized (staged) {
+            return staged.containsKey(offset);
+        }
+    }
+
+    private void writeFully(FileChannel fc, byte[] data, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        int cnt = 0;
+        while (bb.hasRemaining()) {
+            cnt += fc.write(bb, offset + cnt);
+        }
+    }
+
+    /**
+     * Returns a read-only view of len bytes starting at the specified file
+     * offset, backed by a memory mapping of the file rather than a copy.
+     * Offsets must be multiples of len, so that a region never straddles
+     * two mapped segments.
+     *
+     * @param offset the offset in the file of the first byte of the region
+     * @param len the length of the region, typically the page size
+     * @return a view of the region, or null if it lies past the end of the
+     *         file
+     */
+    public ByteBuffer map(long offset, int len) throws IOException {
+        if (offset + len > size())
+            return null;
+        MappedByteBuffer[] segs = segments;
+        long segsize;
+        synchronized (this) {
+            if (segmentSize == 0)
+                segmentSize = (long) len * MAP_SEGMENT_PAGES;
+            segsize = segmentSize;
+        }
+        int idx = (int) (offset / segsize);
+        int start = (int) (offset % segsize);
+        if (idx >= segs.length || segs[idx] == null || segs[idx].capacity() < start + len)
+            segs = remap();
+        ByteBuffer bb = segs[idx].duplicate();
+        bb.position(start);
+        bb.limit(start + len);
+        return bb.slice();
+    }
+
+    /**
+     * Maps the file up to its current length. Segments that were already
+     * mapped at full size are kept; the tail segment and any new segments
+     * are mapped again.
+     */
+    private synchronized MappedByteBuffer[] remap() throws IOException {
+        long len = size();
+        int nsegs = (int) ((len + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] old = segments;
+        MappedByteBuffer[] segs = Arrays.copyOf(old, Math.max(nsegs, old.length));
+        for (int i = 0; i < nsegs; ++i) {
+            if (segs[i] != null && segs[i].capacity() == segmentSize)
+                continue;
+            long start = i * segmentSize;
+            segs[i] = getChannel().map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(segmentSize, len - start));
+        }
+        segments = segs;
+        return segs;
+    }
+
+    /**
+     * @return the current size in bytes of the backing file
+     */
+    public long size() {
+        FileChannel fc = channel;
+        if (fc != null && fc.isOpen()) {
+            try {
+                return fc.size();
+            } catch (IOException e) {
+                // fall through to the file system
+            }
+        }
+        return file.length();
+    }
+
+    /** Forces any written pages to the storage device. */
+    public void force() throws IOException {
+        FileChannel fc = channel;
+        if (fc != null && fc.isOpen())
+            fc.force(false);
+    }
+
+    /**
+     * Closes the underlying channel and drops any mappings; both are
+     * recreated on the next access.
+     */
+    public synchronized void close() {
+        segments = new MappedByteBuffer[0];
+        synchronized (staged) {
+            staged.clear();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore failures closing the file
+            }
+            channel = null;
+        }
+    }
+}
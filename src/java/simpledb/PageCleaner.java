@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PageCleaner writes dirty pages of the BufferPool to disk in the
+ * background, so that a committing transaction mostly finds its pages
+ * written already instead of writing all of them itself.
+ * <p>
+ * A single daemon thread wakes up every INTERVAL_MS milliseconds and looks
+ * at the pages of the current buffer pool that {@link
+ * BufferPool#getCleanablePages} says may be written ahead of time. Nothing
+ * is written while they make up less than {@link #getLowRatio} of the pool.
+ * Above that, the cleaner writes up to {@link #getRate} pages per second,
+ * and above {@link #getHighRatio} as many as it takes to get back down to
+ * the low ratio. Pages are written in file offset order, each after its
+ * log record (see {@link BufferPool}), and stay cached but clean: the
+ * cleaner never evicts a page, but eviction can drop it without writing
+ * it, and one that is not changed again is not written again at commit.
+ * <p>
+ * The ratios and the rate can be set with the system properties
+ * simpledb.CleanerLow, simpledb.CleanerHigh and simpledb.CleanerRate; a
+ * rate of 0 stops the cleaner.
+ */
+public class PageCleaner {
+
+    private static final long INTERVAL_MS = 100;
+
+    private static final double DEFAULT_LOW_RATIO = 0.1;
+    private static final double DEFAULT_HIGH_RATIO = 0.4;
+    private static final int DEFAULT_RATE = 200;
+
+    private static volatile double lowRatio;
+    private static volatile double highRatio;
+    private static volatile int rate;
+    static {
+        String low = System.getProperty("simpledb.CleanerLow");
+        String high = System.getProperty("simpledb.CleanerHigh");
+        String pages = System.getProperty("simpledb.CleanerRate");
+        lowRatio = low == null ? DEFAULT_LOW_RATIO : Double.parseDouble(low);
+        highRatio = high == null ? DEFAULT_HIGH_RATIO : Double.parseDouble(high);
+        rate = pages == null ? DEFAULT_RATE : Integer.parseInt(pages);
+    }
+
+    private static ScheduledExecutorService cleaner; // guarded by PageCleaner.class
+
+    /** @return the share of the pool that may be dirty before cleaning starts */
+    public static double getLowRatio() {
+        return lowRatio;
+    }
+
+    /** Sets the share of the pool that may be dirty before cleaning starts. */
+    public static void setLowRatio(double ratio) {
+        lowRatio = ratio;
+    }
+
+    /** @return the share of dirty pages above which the rate limit is lifted */
+    public static double getHighRatio() {
+        return highRatio;
+    }
+
+    /** Sets the share of dirty pages above which the rate limit is lifted. */
+    public static void setHighRatio(double ratio) {
+        highRatio = ratio;
+    }
+
+    /** @return the number of pages written per second between the ratios */
+    public static int getRate() {
+        return rate;
+    }
+
+    /** Sets the number of pages written per second; 0 stops the cleaner. */
+    public static void setRate(int pagesPerSecond) {
+        rate = pagesPerSecond;
+    }
+
+    /** Starts the cleaner thread, unless it is running already. */
+    static synchronized void start() {
+        if (cleaner != null)
+            return;
+        cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-cleaner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    clean(Database.getBufferPool());
+                } catch (NoSuchElementException e) {
+                    // the catalog was reset under the cleaner; the pages
+                    // of the tables it dropped need no writing
+                } catch (IOException e) {
+                    // the pages are written at commit anyway
+                    e.printStackTrace();
+                }
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes out the pages one round of the cleaner would.
+     *
+     * @return the number of pages written
+     */
+    static int clean(BufferPool bp) throws IOException {
+        if (rate <= 0)
+            return 0;
+        List<PageId> pages = bp.getCleanablePages();
+        int numPages = bp.getNumPages();
+        int low = (int) (lowRatio * numPages);
+        if (pages.isEmpty() || pages.size() < low)
+            return 0;
+        int budget = (int) Math.max(1, rate * INTERVAL_MS / 1000);
+        if (pages.size() >= highRatio * numPages)
+            budget = Math.max(budget, pages.size() - low);
+        int written = 0;
+        for (PageId pid : pages) {
+            if (written == budget)
+                break;
+            bp.cleanPage(pid);
+            ++written;
+        }
+        return written;
+    }
+}
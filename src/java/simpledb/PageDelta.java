@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the change an update made to a page: the byte ranges of the
+ * page's data that differ between its before and after image, with their
+ * bytes in both. Pages lay out their data as a header of slot bits followed
+ * by fixed size slots, so a range covers the header bits and slot of a
+ * tuple or entry that was inserted or deleted, or the fields of one that
+ * was updated.
+ * <p>
+ * The log holds a delta instead of the two page images once it holds a
+ * full image of the page (see {@link LogFile#logWrite}). Undoing a delta
+ * sets its ranges back to their before image, redoing it sets them to
+ * their after image; either is only correct on the data of the page as of
+ * the other image.
+ */
+class PageDelta {
+
+    // unchanged bytes between two changes cost less than the offset and
+    // length of another range up to this many
+    private static final int GAP = 2 * LogFile.INT_SIZE;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the ranges that differ between the before and after data of
+     *         a page, which are of the same length
+     */
+    static PageDelta diff(byte[] before, byte[] after) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int n = Math.min(before.length, after.length);
+        int i = 0;
+        while (i < n) {
+            if (before[i] == after[i]) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            int end = ++i;
+            while (i < n && i - end < GAP) {
+                if (before[i] != after[i])
+                    end = i + 1;
+                ++i;
+            }
+            ranges.add(new int[] { start, end });
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; ++r) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            b[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            a[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return new PageDelta(offsets, b, a);
+    }
+
+    /** @return a delta that replaces all of the data of a page */
+    static PageDelta image(byte[] before, byte[] after) {
+        return new PageDelta(new int[] { 0 }, new byte[][] { before }, new byte[][] { after });
+    }
+
+    /** @return the number of bytes {@link #write} writes */
+    int size() {
+        int size = LogFile.INT_SIZE;
+        for (byte[] range : before)
+            size += 2 * LogFile.INT_SIZE + 2 * range.length;
+        return size;
+    }
+
+    /** Sets the ranges of the specified page data to their before image. */
+    void undo(byte[] data) {
+        for (int r = 0; r < offsets.length; ++r)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+
+    /** Sets the ranges of the specified page data to their after image. */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; ++r)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /**
+     * Writes the delta as a count of ranges followed by, for each range,
+     * its offset, its length, and its bytes before and after.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; ++r) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** @return a delta written by {@link #write} */
+    static PageDelta read(DataInput in) throws IOException {
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        byte[][] before = new byte[count][];
+        byte[][] after = new byte[count][];
+        for (int r = 0; r < count; ++r) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
@@ -0,0 +1,257 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead watches the pages a scan asks for and, once the access pattern
+ * looks sequential, reads the next pages in the background so the scan does
+ * not stall on I/O at every page boundary.
+ * <p>
+ * Pages are read into the staging area of the file's {@link PageChannel}
+ * rather than straight into the BufferPool: the scan still fetches every
+ * page through {@link BufferPool#getPage}, so locking is unchanged, but the
+ * DbFile.readPage behind a buffer pool miss is served from memory.
+ * <p>
+ * Two access patterns are supported. Heap files are scanned in page number
+ * order ({@link #access}); B+ tree scans walk the leaf chain by following
+ * right-sibling pointers ({@link #followChain}), which the background
+ * reader decodes from the raw leaf pages ahead of the consumer.
+ * <p>
+ * The window starts at one page and doubles, up to {@link #getMaxWindow},
+ * each time the scan catches up with a page that has not arrived yet. It
+ * halves when the staging area dropped pages read ahead before anyone read
+ * them, since the scans of the file are slower than their read-ahead, and
+ * falls back to one page when the scan stops being sequential. The maximum
+ * can be set with the system property simpledb.ReadAhead; 0 disables
+ * read-ahead.
+ */
+public class ReadAhead {
+
+    private static final int DEFAULT_MAX_WINDOW = 8;
+
+    private static volatile int maxWindow;
+    static {
+        String window = System.getProperty("simpledb.ReadAhead");
+        maxWindow = window == null ? DEFAULT_MAX_WINDOW : Integer.parseInt(window);
+    }
+
+    private static final ExecutorService readers = Executors.newFixedThreadPool(2,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-readahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final PageChannel channel;
+    private final long base;
+    private final int pageSize;
+
+    private int window;
+    private int lastPage;   // last page handed to the scan, or -1
+    private int issuedUpTo; // highest page number read ahead by access()
+    private long evictions;  // staged pages of the file dropped unread, as last seen
+
+    private final Set<Integer> chain; // leaves read ahead by followChain()
+    private int chainTail;   // next leaf the chain reader would read, or 0
+    private boolean chainRunning;
+
+    /**
+     * Creates a read-ahead tracker for one scan over a file whose page
+     * number n lives at offset base + n * pageSize.
+     *
+     * @param channel the channel of the file being scanned
+     * @param base the offset of page number 0
+     * @param pageSize the size of the pages being scanned
+     */
+    public ReadAhead(PageChannel channel, long base, int pageSize) {
+        this.channel = channel;
+        this.base = base;
+        this.pageSize = pageSize;
+        this.window = 1;
+        this.lastPage = -1;
+        this.issuedUpTo = -1;
+        this.evictions = channel.getStagedEvictions();
+        this.chain = new HashSet<Integer>();
+        this.chainTail = 0;
+        this.chainRunning = false;
+    }
+
+    /** @return the maximum number of pages read ahead of a scan */
+    public static int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /** Sets the maximum number of pages read ahead of a scan; 0 disables read-ahead. */
+    public static void setMaxWindow(int pages) {
+        maxWindow = pages;
+    }
+
+    /**
+     * Returns true if the page is already cached in the BufferPool, in which
+     * case reading it ahead would be wasted I/O. Subclasses that can name
+     * the page override this; the default assumes nothing is cached.
+     */
+    protected boolean isCached(int pageNo) {
+        return false;
+    }
+
+    private long offset(int pageNo) {
+        return base + (long) pageNo * pageSize;
+    }
+
+    /** Doubles the window after the scan caught up with the read-ahead. */
+    private void grow() {
+        window = Math.min(window * 2, maxWindow);
+    }
+
+    /**
+     * Halves the window if staged pages were dropped unread since the last
+     * look.
+     *
+     * @return true if it did
+     */
+    private boolean shrinkIfWasted() {
+        long now = channel.getStagedEvictions();
+        if (now == evictions)
+            return false;
+        evictions = now;
+        window = Math.max(1, window / 2);
+        return true;
+    }
+
+    /** @return the number of pages read ahead of the scan at most, for now */
+    synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * Notes that the scan is about to read the specified page of a file that
+     * is scanned in page number order. If the scan is sequential, the pages
+     * after it are read ahead.
+     *
+     * @param pageNo the page the scan is about to read
+     * @param numPages the number of pages in the file
+     */
+    public synchronized void access(int pageNo, int numPages) {
+        if (maxWindow <= 0)
+            return;
+        boolean sequential = pageNo == lastPage + 1 && lastPage >= 0;
+        lastPage = pageNo;
+        if (!sequential) {
+            window = 1;
+            issuedUpTo = pageNo;
+            return;
+        }
+        if (!shrinkIfWasted() && pageNo <= issuedUpTo
+                && !channel.isStaged(offset(pageNo)) && !isCached(pageNo))
+            grow();
+        int last = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(issuedUpTo + 1, pageNo + 1); p <= last; ++p) {
+            if (isCached(p))
+                continue;
+            final long off = offset(p);
+            readers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        channel.stage(off, pageSize);
+                    } catch (IOException e) {
+                        // read-ahead is only a hint; the scan will read the page itself
+                    }
+                }
+            });
+        }
+        issuedUpTo = Math.max(issuedUpTo, last);
+    }
+
+    /**
+     * Notes that a B+ tree scan is about to read the specified leaf, having
+     * reached it through a right-sibling pointer. The leaves after it are
+     * read ahead by following their right-sibling pointers.
+     *
+     * @param pageNo the page number of the leaf the scan is about to read
+     */
+    public synchronized void followChain(int pageNo) {
+        if (maxWindow <= 0 || pageNo == 0)
+            return;
+        if (chain.remove(pageNo)) {
+            if (!shrinkIfWasted() && !channel.isStaged(offset(pageNo)) && !isCached(pageNo))
+                grow();
+            if (!chainRunning && chainTail != 0 && chain.size() <= window / 2)
+                readChain(chainTail, true);
+        } else if (lastPage >= 0) {
+            // the scan has crossed a leaf boundary before and is not on the
+            // chain read so far: either it overtook the reader, or this is
+            // the start of a sequential walk
+            chain.clear();
+            if (chainRunning)
+                grow();
+            else
+                readChain(pageNo, false);
+        }
+        lastPage = pageNo;
+    }
+
+    /**
+     * Starts a background walk of the leaf chain at the specified leaf,
+     * reading leaves until the window is full or the chain ends.
+     *
+     * @param start the leaf to start at
+     * @param ahead false if the scan is already reading start itself, so
+     *        that it only serves to find the next leaf
+     */
+    private void readChain(final int start, final boolean ahead) {
+        chainRunning = true;
+        readers.execute(new Runnable() {
+            public void run() {
+                int pageNo = start;
+                boolean counted = ahead;
+                try {
+                    while (pageNo != 0) {
+                        synchronized (ReadAhead.this) {
+                            if (chain.size() >= window)
+                                break;
+                        }
+                        byte[] page = isCached(pageNo) ? null : channel.stage(offset(pageNo), pageSize);
+                        if (page == null && !isCached(pageNo))
+                            break;
+                        if (counted) {
+                            synchronized (ReadAhead.this) {
+                                chain.add(pageNo);
+                            }
+                        }
+                        counted = true;
+                        // a cached leaf's successor is unknown without the
+                        // BufferPool copy, so the walk stops there
+                        pageNo = page == null ? 0 : rightSibling(page);
+                    }
+                } catch (IOException e) {
+                    pageNo = 0;
+                } finally {
+                    synchronized (ReadAhead.this) {
+                        chainTail = pageNo;
+                        chainRunning = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the right-sibling pointer of a raw leaf page.
+     *
+     * @see BTreeLeafPage#BTreeLeafPage
+     */
+    private static int rightSibling(byte[] page) {
+        // parent, left sibling and right sibling pointers lead the page
+        int off = 2 * BTreePage.INDEX_SIZE;
+        return ((page[off] & 0xff) << 24) | ((page[off + 1] & 0xff) << 16)
+                | ((page[off + 2] & 0xff) << 8) | (page[off + 3] & 0xff);
+    }
+}
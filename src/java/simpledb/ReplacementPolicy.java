@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts next, using the
+ * 2Q algorithm (Johnson and Shasha, VLDB 1994).
+ * <p>
+ * A page read for the first time goes into a FIFO queue, A1in. Pages that
+ * fall out of A1in are remembered, without their data, in a second FIFO
+ * queue, A1out. Only a page that is read again while it is remembered in
+ * A1out goes into the main LRU queue, Am. A page has to be used twice, some
+ * time apart, to be kept for long, so one pass over a large table cannot
+ * push the frequently used pages out of the pool. Pages are evicted from
+ * A1in while it holds more than a quarter of the pool, and from the least
+ * recently used end of Am otherwise. Recording an access, an eviction or a
+ * removal takes constant time.
+ * <p>
+ * Pages read by a scan with a {@link ScanRing} are kept in the ring instead
+ * of A1in and Am. They are the first pages evicted, and a scan whose ring is
+ * full evicts the oldest page of its own ring before anything else.
+ * <p>
+ * ReplacementPolicy only tracks page ids; whether a page can actually be
+ * evicted is up to the BufferPool, which takes the first suitable page
+ * returned by {@link #victims}. Dirty pages, and pages a transaction is
+ * changing, stay in the queues, since pages are dirtied without the pool
+ * seeing it. Finding a victim therefore takes time proportional to the
+ * number of such pages ahead of the first clean one: constant while few
+ * pages are dirty, but up to the size of the shard under NO STEAL when
+ * transactions dirty most of it.
+ * <p>
+ * Not threadsafe; each shard of the BufferPool has a policy of its own and
+ * serializes access to it. A ring may hold pages of several shards; a
+ * policy only ever returns the ring pages it tracks itself.
+ *
+ * @see BufferPool
+ */
+public class ReplacementPolicy {
+
+    private final int maxIn;   // size of A1in above which it is evicted first
+    private final int maxOut;  // number of evicted pages remembered in A1out
+
+    private final LinkedHashSet<PageId> in;
+    private final LinkedHashSet<PageId> out;
+    private final LinkedHashSet<PageId> main;
+    private final LinkedHashSet<PageId> ringed; // pages of all rings, oldest first
+    private final Map<PageId, ScanRing> rings;
+
+    /**
+     * Creates a policy for a buffer pool of the specified number of pages.
+     *
+     * @param capacity the number of pages the buffer pool holds
+     */
+    public ReplacementPolicy(int capacity) {
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+        this.in = new LinkedHashSet<PageId>();
+        this.out = new LinkedHashSet<PageId>();
+        this.main = new LinkedHashSet<PageId>();
+        this.ringed = new LinkedHashSet<PageId>();
+        this.rings = new HashMap<PageId, ScanRing>();
+    }
+
+    /**
+     * Records that a page was fetched from the buffer pool, either because
+     * it was just read in or because it was already cached.
+     *
+     * @param pid the page fetched
+     * @param ring the ring of the scan fetching the page, or null
+     */
+    public void access(PageId pid, ScanRing ring) {
+        if (main.contains(pid)) {
+            // a scan does not make a page any more recently used
+            if (ring == null) {
+                main.remove(pid);
+                main.add(pid);
+            }
+            return;
+        }
+        if (in.contains(pid))
+            return;
+        ScanRing owner = rings.get(pid);
+        if (owner != null) {
+            if (ring != null)
+                return;
+            // used outside of the scan that read it
+            removeFromRing(pid, owner);
+            in.add(pid);
+            return;
+        }
+        if (out.remove(pid)) {
+            main.add(pid);
+        } else if (ring != null) {
+            ring.add(pid);
+            ringed.add(pid);
+            rings.put(pid, ring);
+        } else {
+            in.add(pid);
+        }
+    }
+
+    /**
+     * Returns the pages to evict, best candidate first. The caller evicts the
+     * first page that it can, and reports it with {@link #evicted} once it is
+     * done iterating.
+     *
+     * @param ring the ring of the scan that needs a frame, or null
+     */
+    public Iterator<PageId> victims(ScanRing ring) {
+        List<Collection<PageId>> order = new ArrayList<Collection<PageId>>();
+        if (ring != null)
+            order.add(ringPages(ring));
+        order.add(ringed);
+        if (in.size() > maxIn) {
+            order.add(in);
+            order.add(main);
+        } else {
+            order.add(main);
+            order.add(in);
+        }
+        return new ChainedIterator(order);
+    }
+
+    /** @return true if the page was read into the pool by the specified ring */
+    public boolean inRing(PageId pid, ScanRing ring) {
+        return ring != null && rings.get(pid) == ring;
+    }
+
+    private List<PageId> ringPages(ScanRing ring) {
+        List<PageId> pages = ring.pages();
+        Iterator<PageId> it = pages.iterator();
+        while (it.hasNext()) {
+            if (rings.get(it.next()) != ring)
+                it.remove();
+        }
+        return pages;
+    }
+
+    /**
+     * Records that a page was evicted from the buffer pool. A page evicted
+     * from A1in is remembered in A1out.
+     */
+    public void evicted(PageId pid) {
+        if (in.remove(pid)) {
+            out.add(pid);
+            if (out.size() > maxOut) {
+                Iterator<PageId> it = out.iterator();
+                it.next();
+                it.remove();
+            }
+            return;
+        }
+        remove(pid);
+    }
+
+    /**
+     * Forgets a page that left the buffer pool other than by eviction, e.g.
+     * because it was discarded.
+     */
+    public void remove(PageId pid) {
+        in.remove(pid);
+        main.remove(pid);
+        ScanRing owner = rings.get(pid);
+        if (owner != null)
+            removeFromRing(pid, owner);
+    }
+
+    /** Forgets all pages, including the ones remembered in A1out. */
+    public void clear() {
+        in.clear();
+        out.clear();
+        main.clear();
+        for (Map.Entry<PageId, ScanRing> e : rings.entrySet())
+            e.getValue().remove(e.getKey());
+        ringed.clear();
+        rings.clear();
+    }
+
+    private void removeFromRing(PageId pid, ScanRing ring) {
+        ring.remove(pid);
+        ringed.remove(pid);
+        rings.remove(pid);
+    }
+
+    /** Iterates over several collections in turn. */
+    private static class ChainedIterator implements Iterator<PageId> {
+        private final Iterator<Collection<PageId>> lists;
+        private Iterator<PageId> current;
+
+        public ChainedIterator(List<Collection<PageId>> lists) {
+            this.lists = lists.iterator();
+            this.current = Collections.<PageId>emptyList().iterator();
+        }
+
+        public boolean hasNext() {
+            while (!current.hasNext() && lists.hasNext())
+                current = lists.next().iterator();
+            return current.hasNext();
+        }
+
+        public PageId next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * ScanRing is a small, private set of buffer pool frames that a large
+ * sequential scan cycles through. Pages read by the scan go into its ring
+ * instead of the buffer pool's main queues, and once the ring is full the
+ * scan evicts the oldest page of its own ring to make room for the next
+ * one, so a single pass over a big table does not push the working set of
+ * other transactions out of the pool.
+ * <p>
+ * Rings are handed out by {@link BufferPool#getScanRing} to scans of tables
+ * that do not fit in the pool. The ring size can be set with the system
+ * property simpledb.ScanRing; 0 disables rings.
+ *
+ * @see ReplacementPolicy
+ */
+public class ScanRing {
+
+    private static final int DEFAULT_SIZE = 16;
+
+    private static volatile int defaultSize;
+    static {
+        String size = System.getProperty("simpledb.ScanRing");
+        defaultSize = size == null ? DEFAULT_SIZE : Integer.parseInt(size);
+    }
+
+    private final int size;
+
+    // the pages of this ring that are in the buffer pool, oldest first; a
+    // ring's pages may be tracked by the policies of several pool shards
+    private final LinkedHashSet<PageId> pages;
+
+    /**
+     * Creates a ring of the specified number of frames.
+     *
+     * @param size the number of frames the scan may use before it recycles
+     *        its own; at least 1
+     */
+    public ScanRing(int size) {
+        this.size = Math.max(1, size);
+        this.pages = new LinkedHashSet<PageId>();
+    }
+
+    /** @return the number of frames in rings handed out to scans */
+    public static int getDefaultSize() {
+        return defaultSize;
+    }
+
+    /** Sets the number of frames in rings handed out to scans; 0 disables rings. */
+    public static void setDefaultSize(int frames) {
+        defaultSize = frames;
+    }
+
+    /** @return the number of frames of this ring */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if the ring holds as many pages as it has frames */
+    synchronized boolean isFull() {
+        return pages.size() >= size;
+    }
+
+    /** @return a copy of the pages of this ring, oldest first */
+    synchronized List<PageId> pages() {
+        return new ArrayList<PageId>(pages);
+    }
+
+    synchronized void add(PageId pid) {
+        pages.add(pid);
+    }
+
+    synchronized void remove(PageId pid) {
+        pages.remove(pid);
+    }
+}
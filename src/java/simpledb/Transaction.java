@@ -47,9 +47,25 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                //write all the dirty pages for this transaction out, or
+                //under NO FORCE only log them
+                BufferPool bp = Database.getBufferPool();
+                LogFile log = Database.getLogFile();
+                if (BufferPool.isForce())
+                    bp.flushPages(tid);
+                else
+                    bp.logPages(tid);
+                //changes deferred under row locking reach their pages and
+                //the log now; no other commit logs those pages before our
+                //commit record, but the force is waited for without them
+                long end;
+                try {
+                    bp.applyDeferred(tid);
+                    end = log.appendCommit(tid);
+                } finally {
+                    bp.finishDeferred(tid);
+                }
+                log.waitForCommit(end);
             }
 
             try {
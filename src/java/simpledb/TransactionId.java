@@ -17,6 +17,21 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /** A transaction recovered from the log, with the id it had there. */
+    TransactionId(long id) {
+        myid = id;
+    }
+
+    /**
+     * Keeps the ids of transactions in the log from being handed out again
+     * after a restart.
+     */
+    static void skipPast(long id) {
+        long next;
+        while ((next = counter.get()) <= id && !counter.compareAndSet(next, id + 1))
+            ;
+    }
+
     public long getId() {
         return myid;
     }
@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -16,7 +18,12 @@ public class Tuple implements Serializable {
 
     private TupleDesc tuple_desc;
     private RecordId record_id;
-    private ArrayList<Field> tuple_field;
+    private Field[] tuple_field;
+
+    // raw bytes this tuple was read from, for fields not decoded yet
+    private transient ByteBuffer source;
+    private transient int source_offset;
+    private transient boolean overwritten;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -29,12 +36,64 @@ public class Tuple implements Serializable {
         // some code goes here
         if (td.numFields() != 0) {
             tuple_desc = td;
-            tuple_field = new ArrayList<Field>(td.numFields());
-            for (int i = 0; i < td.numFields(); ++i)
-                tuple_field.add(null);
+            tuple_field = new Field[td.numFields()];
         }
     }
 
+    /**
+     * Create a tuple whose fields are decoded from the serialized tuple at
+     * the specified offset of data the first time they are read, rather
+     * than up front. data must not change for as long as the tuple may
+     * decode from it; buffers without a backing array, such as file
+     * mappings, can change underneath the tuple and are decoded at once.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param data
+     *            the buffer holding the serialized tuple
+     * @param offset
+     *            the offset in data of the first byte of the tuple
+     */
+    Tuple(TupleDesc td, ByteBuffer data, int offset) {
+        this(td);
+        source = data;
+        source_offset = offset;
+        overwritten = false;
+        if (!data.hasArray())
+            decodeAll();
+    }
+
+    /**
+     * @return true if this tuple still serializes to the unchanged bytes at
+     *         the specified offset of data, so they can be copied instead
+     */
+    boolean isBackedBy(ByteBuffer data, int offset) {
+        return source == data && source_offset == offset && !overwritten;
+    }
+
+    private Field decode(int i) {
+        Field f = tuple_field[i];
+        if (f == null && source != null) {
+            f = tuple_desc.getFieldType(i).parse(source, source_offset + tuple_desc.getFieldOffset(i));
+            tuple_field[i] = f;
+        }
+        return f;
+    }
+
+    /** Decodes every field that has not been read yet. */
+    private void decodeAll() {
+        if (source == null)
+            return;
+        for (int i = 0; i < tuple_field.length; ++i)
+            decode(i);
+        source = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -73,8 +132,10 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        if (i < tuple_field.size() && i >= 0)
-            tuple_field.set(i, f);
+        if (i < tuple_field.length && i >= 0) {
+            tuple_field[i] = f;
+            overwritten = true;
+        }
     }
 
     /**
@@ -85,8 +146,8 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        if (i < tuple_field.size() && i >= 0)
-            return tuple_field.get(i);
+        if (i < tuple_field.length && i >= 0)
+            return decode(i);
         return null;
     }
 
@@ -101,8 +162,8 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         StringBuilder str = new StringBuilder();
-        for (int i =0; i < tuple_field.size(); ++i) {
-            str.append(tuple_field.get(i).toString() + "\t");
+        for (int i =0; i < tuple_field.length; ++i) {
+            str.append(decode(i).toString() + "\t");
         }
         return str.substring(0, str.length());
 //        throw new UnsupportedOperationException("Implement this");
@@ -115,7 +176,8 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return tuple_field.iterator();
+        decodeAll();
+        return Arrays.asList(tuple_field).iterator();
     }
 
     /**
@@ -125,6 +187,7 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         if (td.numFields() != 0) {
+            decodeAll();
 //            Type[] typeAr = new Type[td.numFields()];
 //            String[] fieldAr = new String[td.numFields()];
 //            for (int i = 0; i < td.numFields(); ++i) {
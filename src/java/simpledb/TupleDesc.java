@@ -9,6 +9,7 @@ import java.util.*;
 public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> tuple_desc = new ArrayList<TDItem>();;
+    private transient int[] field_offsets;
     /**
      * A help class to facilitate organizing the information of each field
      * */
@@ -149,11 +150,38 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int result = 0;
-        for (int i = 0; i < numFields(); ++i) {
-            result += tuple_desc.get(i).fieldType.getLen();
+        return getFieldOffsets()[numFields()];
+    }
+
+    /**
+     * Gets the offset in bytes of the ith field from the start of a tuple
+     * serialized with this TupleDesc.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i >= numFields() || i < 0)
+            throw new NoSuchElementException("invalid index!");
+        return getFieldOffsets()[i];
+    }
+
+    /**
+     * Field offsets are computed once, the first time they are needed; entry
+     * numFields() holds the size of the whole tuple.
+     */
+    private int[] getFieldOffsets() {
+        int[] offsets = field_offsets;
+        if (offsets == null) {
+            offsets = new int[numFields() + 1];
+            for (int i = 0; i < numFields(); ++i)
+                offsets[i + 1] = offsets[i] + tuple_desc.get(i).fieldType.getLen();
+            field_offsets = offsets;
         }
-        return result;
+        return offsets;
     }
 
     /**
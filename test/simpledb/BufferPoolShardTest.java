@@ -0,0 +1,98 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolShardTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test: a pool of 4 frames split
+     * into 4 shards, and a table of 6 pages.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("simpledb.BufferPoolShards", "4");
+        Database.resetBufferPool(4);
+        hf = SystemTestUtil.createRandomHeapFile(2, 6 * 504, null, null);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty("simpledb.BufferPoolShards");
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    private int cached(int pages) {
+        int n = 0;
+        for (int i = 0; i < pages; ++i) {
+            if (Database.getBufferPool().isCached(page(i)))
+                ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Shards take frames over from each other, so the whole pool is used
+     * however the pages hash.
+     */
+    @Test
+    public void framesMoveBetweenShards() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 4; ++i)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        assertEquals(4, cached(4));
+
+        bp.getPage(tid, page(4), Permissions.READ_ONLY);
+        assertTrue(bp.isCached(page(4)));
+        assertEquals(4, cached(5));
+
+        bp.discardPage(page(4));
+        bp.getPage(tid, page(5), Permissions.READ_ONLY);
+        assertTrue(bp.isCached(page(5)));
+        assertEquals(4, cached(6));
+    }
+
+    /**
+     * The pool is only full once every frame of every shard holds a dirty
+     * page.
+     */
+    @Test
+    public void allDirty() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 4; ++i)
+            bp.getPage(tid, page(i), Permissions.READ_WRITE);
+        try {
+            bp.getPage(tid, page(4), Permissions.READ_ONLY);
+            fail("expected an exception");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid, false);
+        assertEquals(0, cached(6));
+        bp.getPage(tid, page(4), Permissions.READ_ONLY);
+        assertTrue(bp.isCached(page(4)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolShardTest.class);
+    }
+}
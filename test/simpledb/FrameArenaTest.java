@@ -0,0 +1,71 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+
+    /**
+     * Frames are direct, page-sized and handed out once until released.
+     */
+    @Test
+    public void allocate() {
+        FrameArena arena = new FrameArena(3, 4096);
+        Set<ByteBuffer> frames = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        ByteBuffer f;
+        while ((f = arena.allocate()) != null) {
+            assertTrue(f.isDirect());
+            assertEquals(4096, f.capacity());
+            frames.add(f);
+        }
+        assertEquals(3, frames.size());
+        assertEquals(0, arena.getNumFree());
+
+        ByteBuffer first = frames.iterator().next();
+        arena.release(first);
+        assertSame(first, arena.allocate());
+    }
+
+    /**
+     * Pages cached off-heap read the same tuples, and still do after they
+     * were evicted and their frame reused.
+     */
+    @Test
+    public void offHeapPool() throws Exception {
+        BufferPool.setOffHeap(true);
+        Database.resetBufferPool(2);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3 * 504, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(
+                tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(tuples.get(0), SystemTestUtil.tupleToList(page.iterator().next()));
+        for (int i = 1; i < 3; ++i)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertFalse(Database.getBufferPool().isCached(page.getId()));
+
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < 504; ++i) {
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(tuples.get(i), SystemTestUtil.tupleToList(t));
+        }
+        assertFalse(it.hasNext());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
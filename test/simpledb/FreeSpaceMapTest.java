@@ -0,0 +1,142 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    private File f;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // one full page and one page with 4 tuples
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 508, 1000, null, new ArrayList<ArrayList<Integer>>());
+        td = Utility.getTupleDesc(2);
+    }
+
+    private FreeSpaceMap open() {
+        return new FreeSpaceMap(f, new PageChannel(f), td);
+    }
+
+    /**
+     * The map is rebuilt from the page headers and finds the page with room.
+     */
+    @Test
+    public void rebuild() throws Exception {
+        FreeSpaceMap fsm = open();
+        assertEquals(1, fsm.findFree());
+        fsm.setFree(1, false);
+        assertEquals(-1, fsm.findFree());
+        TransactionId tid = new TransactionId();
+        assertEquals(2, fsm.allocate(tid));
+        assertEquals(3, fsm.allocate(tid));
+        assertEquals(2, fsm.findFree());
+        fsm.setFree(0, true);
+        assertEquals(0, fsm.findFree());
+    }
+
+    /**
+     * Concurrent inserters claim different pages, and the file grows by one
+     * page for each of them.
+     */
+    @Test
+    public void claim() throws Exception {
+        final Set<TransactionId> inserting = new HashSet<TransactionId>();
+        FreeSpaceMap fsm = new FreeSpaceMap(f, new PageChannel(f), td) {
+            @Override
+            protected boolean isInserting(TransactionId owner, int pageNo) {
+                return inserting.contains(owner);
+            }
+        };
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        inserting.addAll(Arrays.asList(t1, t2, t3));
+
+        assertEquals(1, fsm.claim(t1));
+        assertEquals(-1, fsm.claim(t2));
+        assertEquals(2, fsm.allocate(t2));
+        assertEquals(2, fsm.extent());
+        fsm.pagesAdded(2, 4);
+        assertEquals(3, fsm.claim(t3));
+        assertEquals(3, fsm.extent());
+
+        // t1 keeps its page until it is full
+        fsm.setFree(0, true);
+        assertEquals(1, fsm.claim(t1));
+        fsm.setFree(1, false);
+        fsm.unclaim(1, t1);
+        assertEquals(0, fsm.claim(t1));
+
+        // a claim ends with the transaction
+        inserting.remove(t2);
+        assertEquals(2, fsm.claim(new TransactionId()));
+    }
+
+    /**
+     * Written pages are recorded in the stored map, which is used as long as
+     * it is sealed and matches the heap file.
+     */
+    @Test
+    public void stored() throws Exception {
+        FreeSpaceMap fsm = open();
+        fsm.pageWritten(1, false);
+        fsm.close();
+        assertTrue(FreeSpaceMap.fileFor(f).exists());
+
+        // as after a crash: the unsealed map is rebuilt from the page
+        // headers, which still say page 1 has room
+        fsm = open();
+        assertEquals(1, fsm.findFree());
+        fsm.pageWritten(1, false);
+        fsm.seal();
+        fsm.close();
+
+        // only the sealed map can tell page 1 is full
+        fsm = open();
+        assertEquals(-1, fsm.findFree());
+        // a write unseals it again
+        fsm.pageWritten(0, false);
+        fsm.close();
+        assertEquals(1, open().findFree());
+
+        // rewriting the heap file drops the stale map, and the new one is
+        // rebuilt from the single empty page
+        HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), f, BufferPool.getPageSize(), 2);
+        assertFalse(FreeSpaceMap.fileFor(f).exists());
+        assertEquals(0, open().findFree());
+    }
+
+    /**
+     * HeapFile.insertTuple goes to the page with room instead of the first.
+     */
+    @Test
+    public void insertTuple() throws Exception {
+        HeapFile hf = Utility.openHeapFile(2, f);
+        TransactionId tid = new TransactionId();
+        ArrayList<Page> dirtied = hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(1, dirtied.size());
+        assertEquals(1, dirtied.get(0).getId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
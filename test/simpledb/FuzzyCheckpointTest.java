@@ -0,0 +1,69 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test: a table of a full
+     * page, and NO FORCE commits.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        BufferPool.setForce(false);
+    }
+
+    /**
+     * A checkpoint leaves dirty pages cached, and keeps their records in
+     * the log until they are written.
+     */
+    @Test
+    public void keepsDirtyPages() throws Exception {
+        LogFile log = Database.getLogFile();
+        SystemTestUtil.deleteTuple(pid).commit();
+        log.logCheckpoint();
+        assertTrue(Database.getBufferPool().isCached(pid));
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        long kept = log.end() - log.getSegments().first();
+        assertTrue(kept > 2 * BufferPool.getPageSize());
+
+        PageCleaner.setLowRatio(0);
+        assertEquals(1, PageCleaner.clean(Database.getBufferPool()));
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        log.logCheckpoint();
+        assertTrue(log.end() - log.getSegments().first() < BufferPool.getPageSize());
+    }
+
+    /**
+     * A checkpoint does not wait for pages being written.
+     */
+    @Test(timeout = 10000)
+    public void doesNotStallWriters() throws Exception {
+        SystemTestUtil.deleteTuple(pid).commit();
+        Database.getBufferPool().rwl.readLock().lock();
+        try {
+            Database.getLogFile().logCheckpoint();
+        } finally {
+            Database.getBufferPool().rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int COMMITTERS = 4;
+
+    /** Commits a started transaction per thread, all at the same time. */
+    private void commitConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(COMMITTERS);
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < COMMITTERS; ++i) {
+            final Transaction t = new Transaction();
+            t.start();
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        t.commit();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(errors.isEmpty());
+    }
+
+    /**
+     * Commits that wait for a group to fill share a single force.
+     */
+    @Test
+    public void shareForce() throws Exception {
+        LogFile.setGroupCommitDelay(10000000);
+        LogFile.setGroupCommitSize(COMMITTERS);
+        int forces = Database.getLogFile().getTotalForces();
+        commitConcurrently();
+        assertEquals(forces + 1, Database.getLogFile().getTotalForces());
+    }
+
+    /**
+     * Without a delay, every commit is still durable when it returns.
+     */
+    @Test
+    public void noDelay() throws Exception {
+        int forces = Database.getLogFile().getTotalForces();
+        commitConcurrently();
+        int more = Database.getLogFile().getTotalForces() - forces;
+        assertTrue(more >= 1 && more <= COMMITTERS);
+
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        assertEquals(forces + more + 1, Database.getLogFile().getTotalForces());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -77,6 +77,31 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+        assertTrue(Arrays.equals(copied.getPageData(), page.getPageData()));
+
+        // pages past the end of the file are not mapped
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        assertNull(hf.readPage(next));
+
+        // ... until the file grows
+        hf.writePage(new HeapPage(next, HeapPage.createEmptyPageData()));
+        assertEquals(2, hf.numPages());
+        assertEquals(504, ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,33 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() on a page that mixes tuples read
+     * from disk, some of them never decoded, with inserted tuples.
+     */
+    @Test public void getPageData() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+
+        // decode only the first tuple, then delete the second and reuse its slot
+        Iterator<Tuple> it = page.iterator();
+        it.next().getField(0);
+        page.deleteTuple(it.next());
+        Tuple addition = Utility.getHeapTuple(new int[] { 42, 4242 });
+        page.insertTuple(addition);
+        assertEquals(1, addition.getRecordId().getTupleNumber());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertTrue(!actual.hasNext());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
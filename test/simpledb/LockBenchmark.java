@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the ways {@link LockTable} deals with deadlocks, under the
+ * contention of {@link DeadlockTest}: each transaction reads two of a few
+ * hot pages and then writes the first, so that transactions upgrading
+ * locks on the same pages deadlock often. It runs the same workload
+ * against each policy, and prints the transactions committed per second
+ * and the share of transactions aborted.
+ * <p>
+ * Locks are taken on the table directly, so only locking is measured. Run
+ * it from the test classes with
+ * <pre>
+ * java -cp bin/src:bin/test simpledb.LockBenchmark [transactions] [threads] [pages]
+ * </pre>
+ * where transactions is the number each thread runs. LockTableTest runs
+ * the workload too, to check that every policy gets through it.
+ */
+public class LockBenchmark {
+
+    private static final int TABLE_ID = 0;
+
+    /** The counts of one run. */
+    static class Result {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        long millis; // from the start of the first thread to the end of the last
+
+        /** @return the transactions committed per second */
+        double commitRate() {
+            return commits.get() * 1000.0 / Math.max(1, millis);
+        }
+
+        /** @return the share of transactions aborted, in percent */
+        double abortShare() {
+            long total = Math.max(1, commits.get() + aborts.get());
+            return 100.0 * aborts.get() / total;
+        }
+    }
+
+    /**
+     * Runs transactions against a lock table from several threads, under
+     * the deadlock policy set, until each thread ran as many as asked.
+     */
+    static Result run(final LockTable locks, int threads, final int pages,
+                      final int perThread) throws InterruptedException {
+        if (pages < 2)
+            throw new IllegalArgumentException("transactions need two pages");
+        final Result result = new Result();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; ++i) {
+            final Random rand = new Random(i);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    for (int n = 0; n < perThread; ++n) {
+                        TransactionId tid = new TransactionId();
+                        int first = rand.nextInt(pages);
+                        int second = (first + 1 + rand.nextInt(pages - 1)) % pages;
+                        PageId p = new HeapPageId(TABLE_ID, first);
+                        PageId q = new HeapPageId(TABLE_ID, second);
+                        try {
+                            locks.acquire(tid, p, LockTable.Mode.SHARED);
+                            locks.acquire(tid, q, LockTable.Mode.SHARED);
+                            locks.acquire(tid, p, LockTable.Mode.EXCLUSIVE);
+                            result.commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            result.aborts.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            locks.releaseAll(tid);
+                        }
+                    }
+                }
+            }, "lock-benchmark-" + i);
+            workers.add(t);
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : workers)
+            t.start();
+        try {
+            for (Thread t : workers)
+                t.join();
+        } finally {
+            for (Thread t : workers)
+                t.interrupt();
+        }
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private static void report(String name, int threads, int pages, int perThread)
+        throws InterruptedException {
+        run(new LockTable(), threads, pages, perThread / 4); // warm up
+        Result r = run(new LockTable(), threads, pages, perThread);
+        System.out.printf("%-20s %12.0f commits/s %8.2f%% aborted%n",
+                          name, r.commitRate(), r.abortShare());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        LockTable.setDeadlockPolicy(LockTable.Policy.DETECT);
+        LockTable.setDeadlockInterval(0);
+        report("detect on block", threads, pages, perThread);
+        LockTable.setDeadlockInterval(10);
+        report("detect every 10ms", threads, pages, perThread);
+        LockTable.setDeadlockInterval(0);
+        LockTable.setDeadlockPolicy(LockTable.Policy.WAIT_DIE);
+        report("wait-die", threads, pages, perThread);
+        LockTable.setDeadlockPolicy(LockTable.Policy.WOUND_WAIT);
+        report("wound-wait", threads, pages, perThread);
+    }
+}
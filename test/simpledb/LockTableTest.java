@@ -0,0 +1,330 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockTableTest extends SimpleDbTestBase {
+    private static final long WAIT_MS = 200;
+
+    private static final String A = "a";
+    private static final String B = "b";
+
+    private LockTable locks;
+    private ExecutorService threads;
+    private TransactionId t1, t2, t3;
+
+    @Before
+    public void setUp() throws Exception {
+        locks = new LockTable();
+        threads = Executors.newCachedThreadPool();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdownNow();
+    }
+
+    /** Requests a lock in another thread. */
+    private Future<Object> request(final TransactionId tid, final Object key,
+                                   final LockTable.Mode mode) {
+        return threads.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return locks.acquire(tid, key, mode);
+            }
+        });
+    }
+
+    /** Locks a page in another thread. */
+    private Future<Object> requestPage(final TransactionId tid, final PageId pid,
+                                       final LockTable.Mode mode) {
+        return threads.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                locks.acquirePage(tid, pid, mode);
+                return null;
+            }
+        });
+    }
+
+    private static boolean aborted(Future<Object> f) throws Exception {
+        try {
+            f.get(10 * WAIT_MS, TimeUnit.MILLISECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof TransactionAbortedException;
+        }
+    }
+
+    private static boolean granted(Future<Object> f) throws Exception {
+        try {
+            f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A reader arriving after a waiting writer waits behind it, and each is
+     * granted in turn as the locks before it are released.
+     */
+    @Test
+    public void grantsInOrder() throws Exception {
+        locks.acquire(t1, A, LockTable.Mode.SHARED);
+        Future<Object> writer = request(t2, A, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(writer));
+        Future<Object> reader = request(t3, A, LockTable.Mode.SHARED);
+        assertFalse(granted(reader));
+
+        locks.releaseAll(t1);
+        assertTrue(granted(writer));
+        assertFalse(granted(reader));
+        locks.releaseAll(t2);
+        assertTrue(granted(reader));
+        assertTrue(locks.holdsLock(t3, A));
+        assertFalse(locks.holdsLock(t2, A));
+    }
+
+    /** An upgrade is granted before requests that waited longer. */
+    @Test
+    public void upgradesFirst() throws Exception {
+        locks.acquire(t1, A, LockTable.Mode.SHARED);
+        locks.acquire(t2, A, LockTable.Mode.SHARED);
+        Future<Object> writer = request(t3, A, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(writer));
+        Future<Object> upgrade = request(t1, A, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(upgrade));
+
+        locks.releaseAll(t2);
+        assertTrue(granted(upgrade));
+        assertFalse(granted(writer));
+        // held already
+        locks.acquire(t1, A, LockTable.Mode.SHARED);
+        locks.releaseAll(t1);
+        assertTrue(granted(writer));
+    }
+
+    /**
+     * A request that would wait for a transaction waiting for it aborts,
+     * and withdraws from the queue.
+     */
+    @Test
+    public void detectsDeadlock() throws Exception {
+        locks.acquire(t1, A, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, B, LockTable.Mode.EXCLUSIVE);
+        Future<Object> first = request(t1, B, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(first));
+        try {
+            locks.acquire(t2, A, LockTable.Mode.SHARED);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.releaseAll(t2);
+        assertTrue(granted(first));
+        assertTrue(locks.holdsLock(t1, B));
+    }
+
+    /**
+     * A request compatible with the locks granted still waits behind an
+     * incompatible waiter ahead of it, and so closes a cycle through it.
+     */
+    @Test
+    public void detectsDeadlockBehindWaiter() throws Exception {
+        locks.acquire(t1, A, LockTable.Mode.SHARED);
+        locks.acquire(t3, B, LockTable.Mode.EXCLUSIVE);
+        Future<Object> second = request(t2, A, LockTable.Mode.INTENTION_EXCLUSIVE);
+        assertFalse(granted(second));
+        Future<Object> third = request(t3, A, LockTable.Mode.INTENTION_SHARED);
+        assertFalse(granted(third));
+        try {
+            locks.acquire(t1, B, LockTable.Mode.SHARED);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.releaseAll(t1);
+        assertTrue(granted(second));
+        assertTrue(granted(third));
+    }
+
+    /**
+     * The victim of a deadlock need not be the transaction that closed it:
+     * here it is the one holding fewer locks.
+     */
+    @Test
+    public void victimHoldsFewestLocks() throws Exception {
+        LockTable.setVictim(LockTable.Victim.FEWEST_LOCKS);
+        locks.acquire(t1, A, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, B, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, "c", LockTable.Mode.SHARED);
+        Future<Object> first = request(t1, B, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(first));
+        Future<Object> second = request(t2, A, LockTable.Mode.EXCLUSIVE);
+        assertTrue(aborted(first));
+        assertFalse(granted(second));
+        locks.releaseAll(t1);
+        assertTrue(granted(second));
+    }
+
+    /**
+     * With a detection interval, requests wait right away, and the
+     * background detector aborts the youngest transaction of the cycle.
+     */
+    @Test
+    public void detectsInBackground() throws Exception {
+        LockTable.setDeadlockInterval(50);
+        LockTable.setVictim(LockTable.Victim.YOUNGEST);
+        locks.acquire(t1, A, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, B, LockTable.Mode.EXCLUSIVE);
+        Future<Object> first = request(t1, B, LockTable.Mode.EXCLUSIVE);
+        Future<Object> second = request(t2, A, LockTable.Mode.EXCLUSIVE);
+        assertTrue(aborted(second));
+        locks.releaseAll(t2);
+        assertTrue(granted(first));
+        assertTrue(locks.holdsLock(t1, B));
+    }
+
+    /** Under wait-die, only an older transaction waits; a younger one aborts. */
+    @Test
+    public void waitDie() throws Exception {
+        LockTable.setDeadlockPolicy(LockTable.Policy.WAIT_DIE);
+        locks.acquire(t1, A, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, B, LockTable.Mode.SHARED);
+        try {
+            locks.acquire(t2, A, LockTable.Mode.SHARED);
+            fail("expected the younger transaction to die");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(locks.holdsLock(t2, A));
+        Future<Object> older = request(t1, B, LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(older));
+        locks.releaseAll(t2);
+        assertTrue(granted(older));
+    }
+
+    /**
+     * Under wound-wait, an older transaction aborts the younger ones it
+     * waits for: at once if they wait, else at their next request.
+     */
+    @Test
+    public void woundWait() throws Exception {
+        LockTable.setDeadlockPolicy(LockTable.Policy.WOUND_WAIT);
+        locks.acquire(t1, A, LockTable.Mode.EXCLUSIVE);
+        locks.acquire(t2, B, LockTable.Mode.EXCLUSIVE);
+        Future<Object> younger = request(t2, A, LockTable.Mode.SHARED);
+        assertFalse(granted(younger));
+        Future<Object> older = request(t1, B, LockTable.Mode.SHARED);
+        assertTrue(aborted(younger));
+        locks.releaseAll(t2);
+        assertTrue(granted(older));
+
+        locks.acquire(t3, "c", LockTable.Mode.EXCLUSIVE);
+        older = request(t1, "c", LockTable.Mode.SHARED);
+        assertFalse(granted(older));
+        try {
+            locks.acquire(t3, "d", LockTable.Mode.SHARED);
+            fail("expected the wounded transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.releaseAll(t3);
+        assertTrue(granted(older));
+    }
+
+    /**
+     * Every policy gets the workload of {@link LockBenchmark}, full of
+     * deadlocks, through without leaving a transaction waiting for good,
+     * and commits some of it.
+     */
+    @Test
+    public void contendedWorkloadFinishes() throws Exception {
+        for (LockTable.Policy policy : LockTable.Policy.values()) {
+            LockTable.setDeadlockPolicy(policy);
+            Future<LockBenchmark.Result> run = threads.submit(new Callable<LockBenchmark.Result>() {
+                public LockBenchmark.Result call() throws Exception {
+                    return LockBenchmark.run(locks, 8, 4, 200);
+                }
+            });
+            LockBenchmark.Result r = run.get(20, TimeUnit.SECONDS);
+            assertTrue(policy.toString(), r.commits.get() > 0);
+            assertEquals(policy.toString(), 8 * 200, r.commits.get() + r.aborts.get());
+        }
+    }
+
+    /** A transaction holding shared and intention exclusive locks holds both as SIX. */
+    @Test
+    public void joinsModes() throws Exception {
+        assertEquals(LockTable.Mode.SHARED,
+                     locks.acquire(t1, A, LockTable.Mode.INTENTION_SHARED).join(LockTable.Mode.SHARED));
+        assertEquals(LockTable.Mode.SHARED_INTENTION_EXCLUSIVE,
+                     locks.acquire(t1, B, LockTable.Mode.SHARED).join(LockTable.Mode.INTENTION_EXCLUSIVE));
+        assertEquals(LockTable.Mode.SHARED_INTENTION_EXCLUSIVE,
+                     locks.acquire(t1, B, LockTable.Mode.INTENTION_EXCLUSIVE));
+        // another reader of the table is still welcome, a writer is not
+        assertEquals(LockTable.Mode.INTENTION_SHARED,
+                     locks.acquire(t2, B, LockTable.Mode.INTENTION_SHARED));
+        assertFalse(granted(request(t3, B, LockTable.Mode.INTENTION_EXCLUSIVE)));
+    }
+
+    /**
+     * A transaction that locked a whole table reads its pages without
+     * locking them, and keeps writers of any page out.
+     */
+    @Test
+    public void tableLockCoversPages() throws Exception {
+        PageId p0 = new HeapPageId(1, 0);
+        PageId other = new HeapPageId(2, 0);
+        locks.acquireTable(t1, 1, LockTable.Mode.SHARED);
+        locks.acquirePage(t1, p0, LockTable.Mode.SHARED);
+        assertFalse(locks.holdsLock(t1, p0));
+        assertTrue(locks.holdsPage(t1, p0));
+
+        locks.acquirePage(t2, p0, LockTable.Mode.SHARED);
+        assertTrue(locks.holdsPage(t2, p0));
+        Future<Object> writer = requestPage(t3, new HeapPageId(1, 5), LockTable.Mode.EXCLUSIVE);
+        assertFalse(granted(writer));
+        locks.acquirePage(t3, other, LockTable.Mode.EXCLUSIVE);
+        locks.releaseAll(t1);
+        assertTrue(granted(writer));
+    }
+
+    /**
+     * Past the escalation threshold, a transaction locks the table in
+     * place of its pages.
+     */
+    @Test
+    public void escalates() throws Exception {
+        LockTable.setEscalationThreshold(2);
+        PageId p0 = new HeapPageId(1, 0);
+        PageId p1 = new HeapPageId(1, 1);
+        PageId p2 = new HeapPageId(1, 2);
+        locks.acquirePage(t1, p0, LockTable.Mode.SHARED);
+        locks.acquirePage(t1, p1, LockTable.Mode.EXCLUSIVE);
+        assertTrue(locks.holdsLock(t1, p1));
+        locks.acquirePage(t1, p2, LockTable.Mode.SHARED);
+        assertFalse(locks.holdsLock(t1, p1));
+        assertFalse(locks.holdsLock(t1, p2));
+        assertTrue(locks.holdsPage(t1, p2));
+        // it wrote, so the table is locked exclusively
+        assertFalse(granted(requestPage(t2, new HeapPageId(1, 9), LockTable.Mode.SHARED)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockTableTest.class);
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
@@ -16,10 +17,15 @@ public class LockingTest extends TestUtil.CreateHeapFile {
   // just so we have a pointer shorter than Database.getBufferPool()
   private BufferPool bp;
 
+  private boolean rowLocking;
+
   /**
    * Set up initial resources for each unit test.
    */
   @Before public void setUp() throws Exception {
+    // these are tests of page locks; see RowLockingTest for row locking
+    rowLocking = BufferPool.isRowLocking();
+    BufferPool.setRowLocking(false);
     super.setUp();
 
 //    System.out.print(empty.numPages() + "   ");
@@ -59,6 +65,10 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
   }
 
+  @After public void tearDown() {
+    BufferPool.setRowLocking(rowLocking);
+  }
+
   /**
    * Generic unit test structure for BufferPool.getPage() assuming locking.
    *
@@ -105,6 +115,18 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     t.stop();
   }
 
+  /**
+   * A scan locks the pages it read, not its table, so a writer of a page
+   * it has not reached yet goes ahead.
+   */
+  @Test public void scanLocksPages() throws Exception {
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    it.next();
+    grabLock(tid2, p2, Permissions.READ_WRITE, true);
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+  }
+
   /**
    * Unit test for BufferPool.getPage() assuming locking.
    * Acquires two read locks on the same page.
@@ -0,0 +1,92 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int RECORDS = 500;
+    private static final int RECORD_SIZE = 2 * LogFile.LONG_SIZE;
+    // records continue from one segment into the next
+    private static final int SEGMENT_SIZE = 1000;
+
+    private File file;
+    private LogSegments segments;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("logbuffer", ".log");
+        segments = new LogSegments(file, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        segments.clear();
+        segments.close();
+        file.delete();
+    }
+
+    /**
+     * Records appended concurrently all reach the segments, each stamped
+     * with its LSN.
+     */
+    @Test
+    public void concurrentAppends() throws Exception {
+        final LogBuffer buffer = new LogBuffer(segments, 0);
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; ++i) {
+            final long id = i;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < RECORDS; ++j) {
+                            byte[] record = new byte[RECORD_SIZE];
+                            ByteBuffer.wrap(record).putLong(id);
+                            buffer.append(record);
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertTrue(errors.isEmpty());
+
+        long end = buffer.end();
+        assertEquals(THREADS * RECORDS * RECORD_SIZE, end);
+        buffer.waitForced(end, false);
+        assertEquals(end, segments.end());
+
+        int[] counts = new int[THREADS];
+        DataInputStream in = new DataInputStream(segments.open(0));
+        for (long lsn = 0; lsn < end; lsn += RECORD_SIZE) {
+            counts[(int) in.readLong()]++;
+            assertEquals(lsn, in.readLong());
+        }
+        assertEquals(-1, in.read());
+        for (int count : counts)
+            assertEquals(RECORDS, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
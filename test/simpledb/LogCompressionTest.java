@@ -0,0 +1,87 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.Iterator;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogCompressionTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test: a table of a page with
+     * a few tuples, and NO FORCE commits.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        file = hf.getFile();
+        pid = new HeapPageId(hf.getId(), 0);
+        BufferPool.setForce(false);
+        LogFile.setCompression(true);
+    }
+
+    /** Deletes a tuple of the page in a new transaction, and writes the page. */
+    private Transaction deleteTuple() throws Exception {
+        Transaction t = SystemTestUtil.deleteTuple(pid);
+        Database.getBufferPool().flushPages(t.getId());
+        return t;
+    }
+
+    private int tuplesOnDisk() {
+        int n = 0;
+        for (Iterator<Tuple> it = ((HeapPage) hf.readPage(pid)).iterator(); it.hasNext(); it.next())
+            ++n;
+        return n;
+    }
+
+    /** The two images of a mostly empty page take a fraction of a page. */
+    @Test
+    public void compressesImages() throws Exception {
+        LogFile log = Database.getLogFile();
+        long end = log.end();
+        deleteTuple().commit();
+        assertTrue(log.end() - end < BufferPool.getPageSize() / 4);
+        assertEquals(ROWS - 1, tuplesOnDisk());
+    }
+
+    /**
+     * Compressed records are rolled back from the log, and a log of both
+     * compressed and uncompressed records is recovered.
+     */
+    @Test
+    public void recoversMixedLog() throws Exception {
+        deleteTuple().commit();
+        LogFile.setCompression(false);
+        deleteTuple().commit();
+        LogFile.setCompression(true);
+        LogFile.setUndoChainLimit(0);
+        deleteTuple().abort();
+        assertEquals(ROWS - 2, tuplesOnDisk());
+        deleteTuple();
+        assertEquals(ROWS - 3, tuplesOnDisk());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(ROWS - 2, tuplesOnDisk());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogCompressionTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 100;
+
+    private File file;
+    private LogSegments segments;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("logsegments", ".log");
+        segments = new LogSegments(file, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        segments.clear();
+        segments.close();
+        file.delete();
+    }
+
+    /** Writes the longs from 0 until the specified LSN. */
+    private void fill(long end) throws Exception {
+        ByteBuffer src = ByteBuffer.allocate((int) end);
+        while (src.hasRemaining())
+            src.putLong(src.position());
+        src.flip();
+        long lsn = 0;
+        while (src.hasRemaining())
+            lsn += segments.write(src, lsn);
+    }
+
+    /**
+     * Bytes continue from one segment into the next, are read back across
+     * them, and the log ends where its last segment does.
+     */
+    @Test
+    public void spansSegments() throws Exception {
+        fill(400);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), segments.list());
+        assertEquals(400, segments.end());
+
+        DataInputStream in = new DataInputStream(segments.open(96));
+        assertEquals(96, in.readLong());
+        assertEquals(104, in.readLong());
+
+        segments.truncate(250);
+        assertEquals(Arrays.asList(0L, 1L, 2L), segments.list());
+        assertEquals(250, segments.end());
+        LogSegments.Input end = segments.open(248);
+        assertEquals(2, end.read(new byte[8], 0, 8));
+        assertEquals(-1, end.read());
+    }
+
+    /**
+     * Segments before the first record still needed are dropped in the
+     * background, and the rest are left alone.
+     */
+    @Test(timeout = 10000)
+    public void recycle() throws Exception {
+        fill(400);
+        segments.recycle(250);
+        assertEquals(250, segments.first());
+        while (segments.list().size() > 2)
+            Thread.sleep(10);
+        assertEquals(Arrays.asList(2L, 3L), segments.list());
+
+        DataInputStream in = new DataInputStream(segments.open(248));
+        assertEquals(248, in.readLong());
+        assertEquals(400, new LogSegments(file, SEGMENT_SIZE).end());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class NoForceTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test: a table of 4 full pages,
+     * and NO FORCE commits.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 4 * 504, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        BufferPool.setForce(false);
+    }
+
+    private int emptySlotsCached() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        int empty = p.getNumEmptySlots();
+        t.commit();
+        return empty;
+    }
+
+    /**
+     * A commit logs the page instead of writing it; the page stays cached
+     * and dirty until the cleaner writes it.
+     */
+    @Test
+    public void commitKeepsPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        int records = Database.getLogFile().getTotalRecords();
+        SystemTestUtil.deleteTuple(pid).commit();
+        // BEGIN, UPDATE and COMMIT
+        assertEquals(records + 3, Database.getLogFile().getTotalRecords());
+        assertTrue(bp.isCached(pid));
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        assertEquals(1, emptySlotsCached());
+
+        PageCleaner.setLowRatio(0);
+        assertEquals(1, PageCleaner.clean(bp));
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        assertTrue(bp.getCleanablePages().isEmpty());
+    }
+
+    /**
+     * Aborting a transaction keeps the committed but unwritten changes of
+     * an earlier one on the same page.
+     */
+    @Test
+    public void abortKeepsCommitted() throws Exception {
+        SystemTestUtil.deleteTuple(pid).commit();
+        SystemTestUtil.deleteTuple(pid).abort();
+        assertEquals(1, emptySlotsCached());
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * A full pool writes out a page of committed changes to evict it.
+     */
+    @Test
+    public void evictCommitted() throws Exception {
+        Database.resetBufferPool(1);
+        SystemTestUtil.deleteTuple(pid).commit();
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        t.commit();
+        assertFalse(Database.getBufferPool().isCached(pid));
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(NoForceTest.class);
+    }
+}
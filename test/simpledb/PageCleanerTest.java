@@ -0,0 +1,89 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private Transaction t;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test: a transaction that
+     * deleted a tuple from each of the 4 pages of a table.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 4 * 504, null, null);
+        bp = Database.getBufferPool();
+        t = new Transaction();
+        t.start();
+        for (int i = 3; i >= 0; --i)
+            SystemTestUtil.deleteTuple(t.getId(), new HeapPageId(hf.getId(), i));
+    }
+
+    /**
+     * Dirty pages are written in file order once they make up enough of the
+     * pool, are clean until they change again, and are not written again at
+     * commit.
+     */
+    @Test
+    public void writeAhead() throws Exception {
+        List<PageId> pages = bp.getCleanablePages();
+        assertEquals(4, pages.size());
+        for (int i = 0; i < 4; ++i)
+            assertEquals(i, pages.get(i).getPageNumber());
+
+        // 4 of 50 pages is below the low ratio
+        PageCleaner.setLowRatio(0.1);
+        assertEquals(0, PageCleaner.clean(bp));
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, new HeapPageId(hf.getId(), 0)));
+
+        PageCleaner.setLowRatio(0.05);
+        PageCleaner.clean(bp);
+        assertTrue(bp.getCleanablePages().isEmpty());
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, new HeapPageId(hf.getId(), i)));
+            PageId pid = new HeapPageId(hf.getId(), i);
+            assertNull(bp.getPage(t.getId(), pid, Permissions.READ_ONLY).isDirty());
+        }
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        Iterator<Tuple> it = p.iterator();
+        assertTrue(it.hasNext());
+        p.deleteTuple(it.next());
+        assertEquals(t.getId(), p.isDirty());
+        assertEquals(1, bp.getCleanablePages().size());
+        PageCleaner.setLowRatio(0);
+        assertEquals(1, PageCleaner.clean(bp));
+        assertNull(p.isDirty());
+
+        int records = Database.getLogFile().getTotalRecords();
+        t.commit();
+        assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Nothing of an uncommitted transaction is written while STEAL is off.
+     */
+    @Test
+    public void noSteal() throws Exception {
+        BufferPool.setSteal(false);
+        assertTrue(bp.getCleanablePages().isEmpty());
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
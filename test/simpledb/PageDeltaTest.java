@@ -0,0 +1,83 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    /**
+     * A delta holds the changed ranges, merging nearby changes, and
+     * undoes and redoes them after being written and read back.
+     */
+    @Test
+    public void diff() throws Exception {
+        byte[] before = new byte[256];
+        byte[] after = before.clone();
+        after[3] = 1;
+        after[6] = 2;
+        after[200] = 3;
+        PageDelta delta = PageDelta.diff(before, after);
+        // [3, 7) and [200, 201)
+        assertEquals(LogFile.INT_SIZE + 2 * (2 * LogFile.INT_SIZE) + 2 * 4 + 2 * 1, delta.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertEquals(delta.size(), bytes.size());
+        delta = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] data = after.clone();
+        delta.undo(data);
+        assertTrue(Arrays.equals(before, data));
+        delta.redo(data);
+        assertTrue(Arrays.equals(after, data));
+    }
+
+    /**
+     * Writes of a page after its first one since the checkpoint log only
+     * what changed, and are rolled back with it.
+     */
+    @Test
+    public void logsDeltas() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        BufferPool bp = Database.getBufferPool();
+        LogFile log = Database.getLogFile();
+
+        Transaction t = new Transaction();
+        t.start();
+        long[] grew = new long[2];
+        for (int i = 0; i < grew.length; ++i) {
+            HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            Iterator<Tuple> it = p.iterator();
+            assertTrue(it.hasNext());
+            bp.deleteTuple(t.getId(), it.next());
+            long length = log.end();
+            bp.flushPages(t.getId());
+            grew[i] = log.end() - length;
+        }
+        assertTrue(grew[0] > 2 * BufferPool.getPageSize());
+        assertTrue(grew[1] < BufferPool.getPageSize() / 16);
+        assertEquals(2, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        t.abort();
+        assertEquals(0, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private File f;
+    private PageChannel channel;
+    private int pagesize;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // 10 pages of 2-column tuples
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 5040, 1000, null, new ArrayList<ArrayList<Integer>>());
+        channel = new PageChannel(f);
+        pagesize = BufferPool.getPageSize();
+    }
+
+    /** Waits a bounded amount of time for the read-ahead threads to stage a page. */
+    private boolean waitForStaged(int pageNo) throws InterruptedException {
+        for (int i = 0; i < 200 && !channel.isStaged((long) pageNo * pagesize); ++i)
+            Thread.sleep(10);
+        return channel.isStaged((long) pageNo * pagesize);
+    }
+
+    /**
+     * Sequential access reads the following pages ahead, and staged pages
+     * are served by PageChannel.read with the bytes on disk.
+     */
+    @Test
+    public void sequentialAccess() throws Exception {
+        ReadAhead ra = new ReadAhead(channel, 0, pagesize);
+        ra.access(0, 10);
+        ra.access(1, 10);
+        assertTrue(waitForStaged(2));
+
+        byte[] staged = new byte[pagesize];
+        assertEquals(pagesize, channel.read(staged, 2L * pagesize));
+        assertFalse(channel.isStaged(2L * pagesize));
+        byte[] ondisk = new byte[pagesize];
+        assertEquals(pagesize, channel.read(ondisk, 2L * pagesize));
+        assertTrue(Arrays.equals(ondisk, staged));
+    }
+
+    /**
+     * Random access does not trigger read-ahead.
+     */
+    @Test
+    public void randomAccess() throws Exception {
+        ReadAhead ra = new ReadAhead(channel, 0, pagesize);
+        ra.access(5, 10);
+        ra.access(2, 10);
+        ra.access(8, 10);
+        Thread.sleep(100);
+        for (int i = 0; i < 10; ++i)
+            assertFalse(channel.isStaged((long) i * pagesize));
+    }
+
+    /**
+     * The window grows while the scan catches up with the read-ahead, and
+     * shrinks once staged pages are dropped before anyone read them.
+     */
+    @Test
+    public void windowShrinksOnWaste() throws Exception {
+        ReadAhead ra = new ReadAhead(channel, 0, pagesize);
+        ra.access(0, 10);
+        ra.access(1, 10);
+        assertTrue(waitForStaged(2));
+        channel.read(new byte[pagesize], 2L * pagesize);
+        ra.access(2, 10);
+        assertEquals(2, ra.getWindow());
+
+        // a slow consumer: the staging area overflows with unread pages
+        for (int i = 0; i <= 64; ++i)
+            channel.stage(i * 8L, 8);
+        assertTrue(channel.getStagedEvictions() > 0);
+        ra.access(3, 10);
+        assertEquals(1, ra.getWindow());
+    }
+
+    /**
+     * A write to a staged page drops the staged copy.
+     */
+    @Test
+    public void writeInvalidates() throws Exception {
+        channel.stage(3L * pagesize, pagesize);
+        assertTrue(channel.isStaged(3L * pagesize));
+        channel.write(new byte[pagesize], 3L * pagesize);
+        assertFalse(channel.isStaged(3L * pagesize));
+    }
+
+    /**
+     * Reading part of a staged page, as the free space map does with page
+     * headers, leaves the page staged for the scan.
+     */
+    @Test
+    public void partialReadKeepsStaged() throws Exception {
+        channel.stage(3L * pagesize, pagesize);
+        assertEquals(8, channel.read(new byte[8], 3L * pagesize));
+        assertTrue(channel.isStaged(3L * pagesize));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test: a table of a full
+     * page, and NO FORCE commits.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        file = hf.getFile();
+        pid = new HeapPageId(hf.getId(), 0);
+        BufferPool.setForce(false);
+    }
+
+    /** Restarts the database, losing the buffer pool, and recovers. */
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Commits that were only logged are redone; a transaction that had
+     * not committed is undone, though its page was written.
+     */
+    @Test
+    public void redoAndUndo() throws Exception {
+        SystemTestUtil.deleteTuple(pid).commit();
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+
+        Transaction loser = SystemTestUtil.deleteTuple(pid);
+        Database.getBufferPool().flushPages(loser.getId());
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+
+        crash();
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        assertEquals(1.0, Database.getLogFile().getRecoveryProgress(), 0);
+
+        // and again, after the rollback was logged
+        SystemTestUtil.deleteTuple(pid).commit();
+        crash();
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * A record torn by the crash is dropped, and records appended after
+     * recovery can be read back by the next one.
+     */
+    @Test
+    public void tornRecord() throws Exception {
+        SystemTestUtil.deleteTuple(pid).commit();
+        LogFile log = Database.getLogFile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(LogFile.UPDATE_RECORD);
+        out.writeLong(0);
+        out.writeUTF(HeapPage.class.getName());
+        ByteBuffer src = ByteBuffer.wrap(bytes.toByteArray());
+        long lsn = log.end();
+        while (src.hasRemaining())
+            lsn += log.getSegments().write(src, lsn);
+
+        crash();
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        SystemTestUtil.deleteTuple(pid).commit();
+        crash();
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /** Evicts the first candidate, as the BufferPool would for clean pages. */
+    private static PageId evict(ReplacementPolicy policy, ScanRing ring) {
+        Iterator<PageId> it = policy.victims(ring);
+        assertTrue(it.hasNext());
+        PageId victim = it.next();
+        policy.evicted(victim);
+        return victim;
+    }
+
+    /**
+     * Pages are only kept for long once they are used again after falling
+     * out of A1in.
+     */
+    @Test
+    public void twoQueues() {
+        ReplacementPolicy policy = new ReplacementPolicy(4);
+        for (int i = 0; i < 4; ++i)
+            policy.access(page(i), null);
+        // A1in holds more than a quarter of the pool: FIFO order
+        assertEquals(page(0), evict(policy, null));
+        assertEquals(page(1), evict(policy, null));
+
+        // page 0 is remembered in A1out and goes to Am when read again
+        policy.access(page(0), null);
+        assertEquals(page(2), evict(policy, null));
+        // A1in is small enough now, so Am goes first
+        assertEquals(page(0), evict(policy, null));
+        assertEquals(page(3), evict(policy, null));
+        assertFalse(policy.victims(null).hasNext());
+    }
+
+    /**
+     * Pages in Am are evicted least recently used first.
+     */
+    @Test
+    public void leastRecentlyUsed() {
+        ReplacementPolicy policy = new ReplacementPolicy(4);
+        for (int i = 0; i < 3; ++i) {
+            policy.access(page(i), null);
+            policy.evicted(page(i));
+            policy.access(page(i), null);
+        }
+        policy.access(page(0), null);
+        assertEquals(page(1), evict(policy, null));
+        assertEquals(page(2), evict(policy, null));
+        assertEquals(page(0), evict(policy, null));
+    }
+
+    /**
+     * A scan with a ring neither promotes the pages it reads nor pushes out
+     * other pages before its own.
+     */
+    @Test
+    public void scanRing() {
+        ReplacementPolicy policy = new ReplacementPolicy(8);
+        policy.access(page(0), null);
+        policy.evicted(page(0));
+        policy.access(page(0), null);
+        policy.access(page(1), null);
+
+        ScanRing ring = new ScanRing(2);
+        policy.access(page(0), ring);
+        for (int i = 10; i < 12; ++i)
+            policy.access(page(i), ring);
+        assertTrue(ring.isFull());
+
+        assertEquals(page(10), evict(policy, ring));
+        assertEquals(page(11), evict(policy, null));
+        assertFalse(ring.isFull());
+
+        // a page read by a scan and then by someone else joins A1in
+        policy.access(page(12), ring);
+        policy.access(page(12), null);
+        assertEquals(page(0), evict(policy, null));
+        assertEquals(page(1), evict(policy, null));
+        assertEquals(page(12), evict(policy, null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
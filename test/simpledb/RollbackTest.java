@@ -0,0 +1,79 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RollbackTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private HeapPageId p0;
+    private HeapPageId p1;
+
+    /**
+     * Set up initial resources for each unit test: a table of two full
+     * pages, and NO FORCE commits.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 1008, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        BufferPool.setForce(false);
+    }
+
+    /** Deletes a tuple of a page, and writes the page. */
+    private void deleteTuple(Transaction t, HeapPageId pid) throws Exception {
+        SystemTestUtil.deleteTuple(t.getId(), pid);
+        Database.getBufferPool().flushPages(t.getId());
+    }
+
+    /**
+     * Aborts a transaction whose updates of one page are interleaved in
+     * the log with those of another transaction, which stay.
+     */
+    private void abortInterleaved() throws Exception {
+        Transaction loser = new Transaction();
+        loser.start();
+        Transaction winner = new Transaction();
+        winner.start();
+        deleteTuple(loser, p0);
+        deleteTuple(winner, p1);
+        deleteTuple(loser, p0);
+        deleteTuple(winner, p1);
+        winner.commit();
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, p0));
+
+        loser.abort();
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, p0));
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, p1));
+    }
+
+    /** Rollback undoes the changes the transaction keeps in memory. */
+    @Test
+    public void fromMemory() throws Exception {
+        abortInterleaved();
+    }
+
+    /**
+     * Rollback of a transaction that changed more than it keeps in memory
+     * follows its chain of records in the log.
+     */
+    @Test
+    public void fromLog() throws Exception {
+        LogFile.setUndoChainLimit(0);
+        abortInterleaved();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RollbackTest.class);
+    }
+}
@@ -0,0 +1,304 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RowLockingTest extends SimpleDbTestBase {
+    private static final long WAIT_MS = 200;
+
+    private HeapFile hf;
+    private HeapPageId pid;
+    private List<Tuple> tuples;
+    private ExecutorService threads;
+
+    /**
+     * Set up initial resources for each unit test: a table of a full page,
+     * and row locking.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        tuples = scanAll();
+        threads = Executors.newCachedThreadPool();
+        BufferPool.setRowLocking(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdownNow();
+    }
+
+    /** @return the tuples of the table a transaction sees */
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> seen = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            seen.add(it.next());
+        it.close();
+        return seen;
+    }
+
+    /** @return the tuples of the table, as of the last commit */
+    private List<Tuple> scanAll() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Tuple> seen = scan(tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return seen;
+    }
+
+    /** Deletes a tuple in a new transaction, from another thread. */
+    private Future<Transaction> delete(final Tuple t) {
+        return threads.submit(new Callable<Transaction>() {
+            public Transaction call() throws Exception {
+                Transaction txn = new Transaction();
+                txn.start();
+                Database.getBufferPool().deleteTuple(txn.getId(), t);
+                return txn;
+            }
+        });
+    }
+
+    /** Scans the table with a SeqScan in a transaction, from another thread. */
+    private Future<List<Tuple>> seqScan(final Transaction txn) {
+        return threads.submit(new Callable<List<Tuple>>() {
+            public List<Tuple> call() throws Exception {
+                List<Tuple> seen = new ArrayList<Tuple>();
+                SeqScan scan = new SeqScan(txn.getId(), hf.getId());
+                scan.open();
+                while (scan.hasNext())
+                    seen.add(scan.next());
+                scan.close();
+                return seen;
+            }
+        });
+    }
+
+    /** Deletes a tuple in a transaction, from another thread. */
+    private Future<Object> delete(final Transaction txn, final Tuple t) {
+        return threads.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                Database.getBufferPool().deleteTuple(txn.getId(), t);
+                return null;
+            }
+        });
+    }
+
+    /** Inserts a tuple of two values in a new transaction, from another thread. */
+    private Future<Transaction> insert(final int value) {
+        return threads.submit(new Callable<Transaction>() {
+            public Transaction call() throws Exception {
+                Transaction txn = new Transaction();
+                txn.start();
+                Insert insert = new Insert(txn.getId(),
+                        TestUtil.createTupleList(2, new int[] { value, value }), hf.getId());
+                insert.open();
+                assertEquals(1, ((IntField) insert.next().getField(0)).getValue());
+                insert.close();
+                return txn;
+            }
+        });
+    }
+
+    /**
+     * Transactions deleting different tuples of a page do not wait for
+     * each other, and both deletes reach the page at commit.
+     */
+    @Test
+    public void neighboursDoNotBlock() throws Exception {
+        Transaction first = delete(tuples.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        Transaction second = delete(tuples.get(1)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+
+        first.commit();
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        second.commit();
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        assertEquals(502, scanAll().size());
+    }
+
+    /**
+     * Transactions inserting into the same page do not wait for each
+     * other, and both tuples reach the page at commit.
+     */
+    @Test
+    public void insertsShareAPage() throws Exception {
+        Transaction first = insert(-1).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        Transaction second = insert(-2).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        first.commit();
+        second.commit();
+
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertTrue(page.isSlotUsed(0));
+        assertTrue(page.isSlotUsed(1));
+        assertEquals(506, scanAll().size());
+    }
+
+    /**
+     * A transaction's own scans see the tuples it inserted, whose slots
+     * are free again once it aborts.
+     */
+    @Test
+    public void scanSeesOwnInserts() throws Exception {
+        Transaction t = insert(-1).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        List<Tuple> seen = scan(t.getId());
+        assertEquals(505, seen.size());
+        assertEquals(-1, ((IntField) seen.get(504).getField(0)).getValue());
+        t.abort();
+        assertEquals(504, scanAll().size());
+
+        insert(-2).get(WAIT_MS, TimeUnit.MILLISECONDS).commit();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertTrue(page.isSlotUsed(0));
+    }
+
+    /**
+     * A transaction inserting into the slot a committed delete freed does
+     * not wait for one deleting the tuple next to it.
+     */
+    @Test
+    public void insertNextToDelete() throws Exception {
+        delete(tuples.get(1)).get(WAIT_MS, TimeUnit.MILLISECONDS).commit();
+        Transaction deleting = delete(tuples.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        Transaction inserting = insert(-1).get(WAIT_MS, TimeUnit.MILLISECONDS);
+
+        inserting.commit();
+        deleting.commit();
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertFalse(page.isSlotUsed(0));
+        assertTrue(page.isSlotUsed(1));
+        assertEquals(503, scanAll().size());
+    }
+
+    /**
+     * Transactions that scanned the whole table delete different tuples of
+     * it without waiting for each other.
+     */
+    @Test
+    public void scannersDeleteNeighbours() throws Exception {
+        Transaction first = new Transaction();
+        first.start();
+        Transaction second = new Transaction();
+        second.start();
+        List<Tuple> seenFirst = seqScan(first).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        List<Tuple> seenSecond = seqScan(second).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(504, seenFirst.size());
+        assertEquals(504, seenSecond.size());
+        delete(first, seenFirst.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        delete(second, seenSecond.get(1)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+
+        first.commit();
+        second.commit();
+        assertEquals(2, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+        assertEquals(502, scanAll().size());
+    }
+
+    /**
+     * A scan waits for a transaction deleting a tuple it reaches, and then
+     * goes on without the tuple.
+     */
+    @Test
+    public void scanWaitsForDelete() throws Exception {
+        Transaction first = new Transaction();
+        first.start();
+        List<Tuple> seen = seqScan(first).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        delete(first, seen.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+
+        Transaction second = new Transaction();
+        second.start();
+        Future<List<Tuple>> scan = seqScan(second);
+        try {
+            scan.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            fail("expected the scan to wait");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        first.commit();
+        seen = scan.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(503, seen.size());
+        delete(second, seen.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        second.commit();
+        assertEquals(502, scanAll().size());
+    }
+
+    /**
+     * A transaction that deletes a tuple committed after it began aborts,
+     * rather than lose the update that made the tuple.
+     */
+    @Test
+    public void deleteOfNewerTupleAborts() throws Exception {
+        Transaction first = new Transaction();
+        first.start();
+        assertEquals(504, seqScan(first).get(WAIT_MS, TimeUnit.MILLISECONDS).size());
+        insert(7).get(WAIT_MS, TimeUnit.MILLISECONDS).commit();
+
+        Tuple newer = null;
+        for (Tuple t : seqScan(first).get(WAIT_MS, TimeUnit.MILLISECONDS))
+            if (((IntField) t.getField(0)).getValue() == 7)
+                newer = t;
+        assertNotNull(newer);
+        try {
+            delete(first, newer).get(WAIT_MS, TimeUnit.MILLISECONDS);
+            fail("expected the delete to abort");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        first.transactionComplete(true);
+        assertEquals(505, scanAll().size());
+    }
+
+    /**
+     * A transaction deleting a tuple another one deleted waits for it,
+     * and deletes the tuple once the other aborts.
+     */
+    @Test
+    public void sameTupleWaits() throws Exception {
+        Transaction first = delete(tuples.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        Future<Transaction> waiting = delete(tuples.get(0));
+        try {
+            waiting.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            fail("expected the delete to wait");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        first.abort();
+        Transaction second = waiting.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        second.commit();
+        assertEquals(1, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * A transaction's own scans skip the tuples it deleted, which are back
+     * for everyone once it aborts.
+     */
+    @Test
+    public void scanSkipsOwnDeletes() throws Exception {
+        Transaction t = delete(tuples.get(0)).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        List<Tuple> seen = scan(t.getId());
+        assertEquals(503, seen.size());
+        for (Tuple s : seen)
+            assertFalse(s.getRecordId().equals(tuples.get(0).getRecordId()));
+        t.abort();
+        assertEquals(504, scanAll().size());
+        assertEquals(0, SystemTestUtil.emptySlotsOnDisk(hf, pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -38,6 +38,34 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Aborts a transaction whose dirty page was written out to make room
+     * (STEAL), and ensures that its effects were undone on disk.
+     */
+    @Test public void testRollBackStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1);
+
+        // BEGIN TRANSACTION
+        Transaction t = new Transaction();
+        t.start();
+
+        // Insert a new row; the scan has to write out its page
+        EvictionTest.insertRow(f, t);
+        boolean found = EvictionTest.findMagicTuple(f, t);
+        assertTrue(found);
+        // ABORT
+        t.transactionComplete(true);
+
+        // A second transaction must not find the tuple
+        t = new Transaction();
+        t.start();
+        found = EvictionTest.findMagicTuple(f, t);
+        assertFalse(found);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
@@ -1,8 +1,9 @@
 package simpledb.systemtest;
 
+import org.junit.After;
 import org.junit.Before;
 
-import simpledb.Database;
+import simpledb.*;
 
 /**
  * Base class for all SimpleDb test classes. 
@@ -10,11 +11,61 @@ import simpledb.Database;
  *
  */
 public class SimpleDbTestBase {
+	private Settings settings;
+
+	/** The static settings tests change, as they were before a test. */
+	private static class Settings {
+		final boolean force = BufferPool.isForce();
+		final boolean steal = BufferPool.isSteal();
+		final boolean offHeap = BufferPool.isOffHeap();
+		final boolean rowLocking = BufferPool.isRowLocking();
+		final boolean compression = LogFile.isCompression();
+		final int undoChainLimit = LogFile.getUndoChainLimit();
+		final long groupCommitDelay = LogFile.getGroupCommitDelay();
+		final int groupCommitSize = LogFile.getGroupCommitSize();
+		final double cleanerLow = PageCleaner.getLowRatio();
+		final LockTable.Policy policy = LockTable.getDeadlockPolicy();
+		final LockTable.Victim victim = LockTable.getVictim();
+		final long deadlockInterval = LockTable.getDeadlockInterval();
+		final int escalation = LockTable.getEscalationThreshold();
+
+		void restore() {
+			BufferPool.setForce(force);
+			BufferPool.setSteal(steal);
+			BufferPool.setOffHeap(offHeap);
+			BufferPool.setRowLocking(rowLocking);
+			LogFile.setCompression(compression);
+			LogFile.setUndoChainLimit(undoChainLimit);
+			LogFile.setGroupCommitDelay(groupCommitDelay);
+			LogFile.setGroupCommitSize(groupCommitSize);
+			PageCleaner.setLowRatio(cleanerLow);
+			LockTable.setDeadlockPolicy(policy);
+			LockTable.setVictim(victim);
+			LockTable.setDeadlockInterval(deadlockInterval);
+			LockTable.setEscalationThreshold(escalation);
+		}
+	}
+
+	/**
+	 * Remember the static settings before each test, which may change them.
+	 */
+	@Before public void saveSettings() {
+		settings = new Settings();
+	}
+
 	/**
 	 * Reset the database before each test is run.
 	 */
 	@Before	public void setUp() throws Exception {					
 		Database.reset();
 	}
+
+	/**
+	 * Put back the static settings after each test, whether it passed or
+	 * not, so that they do not leak into other tests.
+	 */
+	@After public void restoreSettings() {
+		settings.restore();
+	}
 	
 }
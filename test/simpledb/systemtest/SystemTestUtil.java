@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -81,6 +82,7 @@ public class SystemTestUtil {
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        FreeSpaceMap.fileFor(temp).deleteOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return temp;
     }
@@ -149,6 +151,34 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * Deletes the first tuple of a heap page in a new transaction.
+     *
+     * @return the transaction, which is left running
+     */
+    public static Transaction deleteTuple(HeapPageId pid)
+            throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        deleteTuple(t.getId(), pid);
+        return t;
+    }
+
+    /** Deletes the first tuple of a heap page on behalf of a transaction. */
+    public static void deleteTuple(TransactionId tid, HeapPageId pid)
+            throws DbException, TransactionAbortedException, IOException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        Assert.assertTrue(it.hasNext());
+        bp.deleteTuple(tid, it.next());
+    }
+
+    /** @return the number of empty slots of a heap page, as on disk */
+    public static int emptySlotsOnDisk(HeapFile f, HeapPageId pid) {
+        return ((HeapPage) f.readPage(pid)).getNumEmptySlots();
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM
@@ -235,6 +235,9 @@ public class TransactionTest extends SimpleDbTestBase {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
         Database.resetBufferPool(1);
+        BufferPool.setSteal(false);
+        // the insert must dirty its page now, not at commit
+        BufferPool.setRowLocking(false);
 
         // BEGIN TRANSACTION
         Transaction t = new Transaction();